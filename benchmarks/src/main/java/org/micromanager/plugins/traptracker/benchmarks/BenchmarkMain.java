@@ -0,0 +1,22 @@
+package org.micromanager.plugins.traptracker.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Runs the benchmarks with the usual JMH command line options, always adding the
+// GC profiler, so the allocation rate (gc.alloc.rate.norm, bytes per frame) is
+// reported next to the throughput of every stage.
+public class BenchmarkMain {
+
+   public static void main(String[] args) throws Exception {
+      CommandLineOptions commandLine = new CommandLineOptions(args);
+      Options options = new OptionsBuilder()
+            .parent(commandLine)
+            .addProfiler(GCProfiler.class)
+            .build();
+      new Runner(options).run();
+   }
+}
@@ -0,0 +1,108 @@
+package org.micromanager.plugins.traptracker.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import javax.imageio.ImageIO;
+
+// Test frames for the benchmarks, in the buffer the camera returns: byte[] for
+// depth 1, short[] for depth 2. Either one of the example images in rsc/,
+// scaled to the depth, or a synthetic frame of the given size, with dark round
+// particles with a bright center on a bright, noisy background.
+final class Frames {
+
+   static final int SIGMA = 3;
+   static final int MIN_SIZE = 20;
+
+   static final class Frame {
+      final org.micromanager.plugins.traptracker.functions.Frame frame;
+      final int width;
+      final int height;
+      final int depth;
+
+      private Frame(int[] pixels, int width, int height, int depth) {
+         frame = org.micromanager.plugins.traptracker.functions.Frame.fromPixels(pixels,
+               width, height, depth, -1);
+         this.width = width;
+         this.height = height;
+         this.depth = depth;
+      }
+
+      int max() {
+         return (1 << (8 * depth)) - 1;
+      }
+
+      // Same fraction of the range as DeviceControl uses for 8 bit
+      int threshold() {
+         return (int) (max() * 0.85);
+      }
+   }
+
+   private Frames() {
+   }
+
+   // name is "img_0" or "img_1" for the example images, or the size of a square
+   // synthetic frame
+   static Frame load(String name, int depth) throws IOException {
+      if (name.startsWith("img_")) {
+         return loadImage(name + ".jpg", depth);
+      }
+      int size = Integer.parseInt(name);
+      return synthetic(size, size, depth);
+   }
+
+   private static Frame loadImage(String resource, int depth) throws IOException {
+      BufferedImage img;
+      try (InputStream in = Frames.class.getResourceAsStream("/" + resource)) {
+         if (in == null) {
+            throw new IOException("Missing resource " + resource);
+         }
+         img = ImageIO.read(in);
+      }
+      int width = img.getWidth();
+      int height = img.getHeight();
+      Raster raster = img.getRaster();
+      int[] pixels = new int[width * height];
+      int scale = ((1 << (8 * depth)) - 1) / 255;
+      for (int y = 0; y < height; y++) {
+         for (int x = 0; x < width; x++) {
+            pixels[y * width + x] = raster.getSample(x, y, 0) * scale;
+         }
+      }
+      return new Frame(pixels, width, height, depth);
+   }
+
+   static Frame synthetic(int width, int height, int depth) {
+      int max = (1 << (8 * depth)) - 1;
+      Random random = new Random(42);
+      int[] pixels = new int[width * height];
+      int background = (int) (max * 0.8);
+      int noise = max / 30;
+      for (int i = 0; i < pixels.length; i++) {
+         pixels[i] = background + random.nextInt(2 * noise + 1) - noise;
+      }
+
+      // Particles on a jittered grid, about one per 40 x 40 pixels
+      int spacing = 40;
+      for (int cy = spacing / 2; cy < height; cy += spacing) {
+         for (int cx = spacing / 2; cx < width; cx += spacing) {
+            int x0 = cx + random.nextInt(17) - 8;
+            int y0 = cy + random.nextInt(17) - 8;
+            int radius = 6 + random.nextInt(4);
+            for (int y = Math.max(0, y0 - radius); y <= Math.min(height - 1, y0 + radius); y++) {
+               for (int x = Math.max(0, x0 - radius); x <= Math.min(width - 1, x0 + radius); x++) {
+                  int r2 = (x - x0) * (x - x0) + (y - y0) * (y - y0);
+                  if (r2 <= 4) {
+                     pixels[y * width + x] = (int) (max * 0.9);
+                  } else if (r2 <= radius * radius) {
+                     pixels[y * width + x] = (int) (max * 0.03);
+                  }
+               }
+            }
+         }
+      }
+      return new Frame(pixels, width, height, depth);
+   }
+}
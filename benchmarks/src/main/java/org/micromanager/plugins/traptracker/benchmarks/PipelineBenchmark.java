@@ -0,0 +1,70 @@
+package org.micromanager.plugins.traptracker.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.micromanager.plugins.traptracker.functions.ParticleCounter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// getParticleCount on a whole frame, for each way the engine can be configured
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PipelineBenchmark {
+
+   public enum Pipeline {
+      FLOOD_FILL, // Separate stages, as in the original analysis
+      UNION_FIND, // Separate stages, scan-line labeling
+      FUSED,      // Single pass to a byte mask
+      BIT_PACKED  // Single pass to a bit mask
+   }
+
+   @Param({"img_0", "img_1", "512", "2048", "4096"})
+   public String frame;
+
+   @Param({"1", "2"})
+   public int depth;
+
+   @Param({"FLOOD_FILL", "UNION_FIND", "FUSED", "BIT_PACKED"})
+   public Pipeline pipeline;
+
+   @Param({"1"})
+   public int threads;
+
+   private final ParticleCounter counter = new ParticleCounter();
+   private Frames.Frame input;
+
+   @Setup(Level.Trial)
+   public void setUp() throws Exception {
+      input = Frames.load(frame, depth);
+      counter.setLabeling(pipeline == Pipeline.FLOOD_FILL
+            ? ParticleCounter.Labeling.FLOOD_FILL : ParticleCounter.Labeling.UNION_FIND);
+      counter.setFused(pipeline == Pipeline.FUSED || pipeline == Pipeline.BIT_PACKED);
+      counter.setBitPacked(pipeline == Pipeline.BIT_PACKED);
+      counter.setThreads(threads);
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      counter.setThreads(1);
+   }
+
+   @Benchmark
+   public int getParticleCount() {
+      return counter.getParticleCount(input.frame, Frames.SIGMA, input.threshold(),
+            Frames.MIN_SIZE);
+   }
+}
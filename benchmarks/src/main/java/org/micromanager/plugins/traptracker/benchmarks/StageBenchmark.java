@@ -0,0 +1,132 @@
+package org.micromanager.plugins.traptracker.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.micromanager.plugins.traptracker.functions.ParticleCounter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The separate stages of ParticleCounter. The stages work in place, so every
+// invocation first copies the output of the previous stage into the working
+// buffer; the copy benchmark measures that copy on its own.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StageBenchmark {
+
+   @Param({"img_0", "img_1", "512", "2048", "4096"})
+   public String frame;
+
+   @Param({"1", "2"})
+   public int depth;
+
+   @Param({"FLOOD_FILL", "UNION_FIND"})
+   public ParticleCounter.Labeling labeling;
+
+   @Param({"1"})
+   public int threads;
+
+   private final ParticleCounter counter = new ParticleCounter();
+   private Frames.Frame input;
+   private int[] raw;
+   private int[] inverted;
+   private int[] blurred;
+   private int[] thresholded;
+   private int[] filled;
+   private int[] work;
+
+   @Setup(Level.Trial)
+   public void setUp() throws Exception {
+      input = Frames.load(frame, depth);
+      counter.setLabeling(labeling);
+      counter.setThreads(threads);
+      int width = input.width;
+      int height = input.height;
+
+      // Output of every stage, as input for the next one
+      raw = counter.imageToPixels(input.frame).clone();
+      inverted = raw.clone();
+      counter.invert(inverted, depth);
+      blurred = inverted.clone();
+      counter.meanBlur(blurred, width, height, Frames.SIGMA);
+      counter.meanBlur(blurred, height, width, Frames.SIGMA);
+      thresholded = blurred.clone();
+      counter.threshold(thresholded, input.threshold());
+      filled = thresholded.clone();
+      counter.fillHoles(filled, width, height);
+      work = new int[raw.length];
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      counter.setThreads(1);
+   }
+
+   @Benchmark
+   public int[] copy() {
+      System.arraycopy(raw, 0, work, 0, work.length);
+      return work;
+   }
+
+   @Benchmark
+   public int[] unpack() {
+      return counter.imageToPixels(input.frame);
+   }
+
+   @Benchmark
+   public int[] invert() {
+      System.arraycopy(raw, 0, work, 0, work.length);
+      counter.invert(work, depth);
+      return work;
+   }
+
+   @Benchmark
+   public int[] meanBlur() {
+      System.arraycopy(inverted, 0, work, 0, work.length);
+      counter.meanBlur(work, input.width, input.height, Frames.SIGMA);
+      counter.meanBlur(work, input.height, input.width, Frames.SIGMA);
+      return work;
+   }
+
+   @Benchmark
+   public int[] gaussianBlur() {
+      System.arraycopy(inverted, 0, work, 0, work.length);
+      counter.setBlur(ParticleCounter.Blur.GAUSSIAN);
+      counter.blur(work, input.width, input.height, Frames.SIGMA);
+      counter.setBlur(ParticleCounter.Blur.MEAN);
+      return work;
+   }
+
+   @Benchmark
+   public int[] threshold() {
+      System.arraycopy(blurred, 0, work, 0, work.length);
+      counter.threshold(work, input.threshold());
+      return work;
+   }
+
+   @Benchmark
+   public int[] fillHoles() {
+      System.arraycopy(thresholded, 0, work, 0, work.length);
+      counter.fillHoles(work, input.width, input.height);
+      return work;
+   }
+
+   @Benchmark
+   public int countParticles() {
+      System.arraycopy(filled, 0, work, 0, work.length);
+      return counter.countParticles(work, input.width, input.height, Frames.MIN_SIZE);
+   }
+}
@@ -0,0 +1,239 @@
+package org.micromanager.plugins.traptracker;
+
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.io.File;
+import java.text.NumberFormat;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
+import javax.swing.JFileChooser;
+import javax.swing.JFormattedTextField;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JTabbedPane;
+import javax.swing.JTextField;
+import javax.swing.text.NumberFormatter;
+import net.miginfocom.swing.MigLayout;
+import org.micromanager.Studio;
+import org.micromanager.plugins.traptracker.functions.AutoThreshold;
+import org.micromanager.plugins.traptracker.functions.BackgroundModel;
+import org.micromanager.plugins.traptracker.functions.DeviceControl;
+import org.micromanager.plugins.traptracker.functions.FrameGrabber;
+import org.micromanager.plugins.traptracker.functions.ParticleCounter;
+import org.micromanager.plugins.traptracker.functions.StageImageWriter;
+
+
+// Settings of the particle analysis, the frame ingestion, the pump commands, the
+// stage images, the background and the trap map, one tab each. The background
+// and the trap map are taken from the current image with the buttons of their tab.
+public class AnalysisPanel extends JPanel {
+   private final Studio studio_;
+   private final Settings settings_;
+   private final DeviceControl deviceControl_;
+
+   private final NumberFormatter formatter;
+
+   private final JComboBox<BackgroundModel.Mode> backgroundSelector;
+   private final JTextField trapMapTextField;
+
+   public AnalysisPanel(Studio studio, Settings settings, DeviceControl deviceControl) {
+      super.setLayout(new MigLayout("fill, insets 2, gap 2, flowx"));
+
+      studio_ = studio;
+      settings_ = settings;
+      deviceControl_ = deviceControl;
+
+      NumberFormat numberFormat = NumberFormat.getNumberInstance();
+      numberFormat.setMaximumFractionDigits(2);
+      numberFormat.setMinimumFractionDigits(0);
+      formatter = new NumberFormatter(numberFormat);
+      formatter.setValueClass(Float.class);
+
+      JTabbedPane tabs = new JTabbedPane();
+      this.add(tabs, "grow");
+
+      JPanel analysis = tab(tabs, "Analysis");
+      addRow(analysis, "Blur: ", selector(ParticleCounter.Blur.values(), settings_.blur,
+            Settings.ParameterTypes.blur));
+      addRow(analysis, "Labeling: ", selector(ParticleCounter.Labeling.values(),
+            settings_.labeling, Settings.ParameterTypes.labeling));
+      addRow(analysis, "Cutoff circularity: ", textFieldFactory(
+            Settings.ParameterTypes.cutoffCircularity, settings_.cutoffCircularity));
+      addRow(analysis, "Threads per frame: ", textFieldFactory(
+            Settings.ParameterTypes.analysisThreads, settings_.analysisThreads));
+      addRow(analysis, "", checkBox("Fused pretreatment", settings_.fusedPretreatment,
+            Settings.ParameterTypes.fusedPretreatment));
+      addRow(analysis, "", checkBox("Bit-packed mask", settings_.bitPackedMask,
+            Settings.ParameterTypes.bitPackedMask));
+      addRow(analysis, "", checkBox("Incremental analysis", settings_.incrementalAnalysis,
+            Settings.ParameterTypes.incrementalAnalysis));
+      addRow(analysis, "Change tolerance: ", textFieldFactory(
+            Settings.ParameterTypes.changeTolerance, settings_.changeTolerance));
+      addRow(analysis, "Threshold: ", selector(AutoThreshold.Method.values(),
+            settings_.autoThreshold, Settings.ParameterTypes.autoThreshold));
+      addRow(analysis, "Threshold window: ", textFieldFactory(
+            Settings.ParameterTypes.thresholdWindow, settings_.thresholdWindow));
+      addRow(analysis, "", checkBox("Log stage timings", settings_.logStageTimings,
+            Settings.ParameterTypes.logStageTimings));
+
+      JPanel frames = tab(tabs, "Frames");
+      addRow(frames, "Ingestion: ", selector(FrameGrabber.Mode.values(), settings_.ingestion,
+            Settings.ParameterTypes.ingestion));
+      addRow(frames, "Analysis workers: ", textFieldFactory(
+            Settings.ParameterTypes.analysisWorkers, settings_.analysisWorkers));
+      addRow(frames, "Frame queue size: ", textFieldFactory(
+            Settings.ParameterTypes.frameQueueSize, settings_.frameQueueSize));
+      addRow(frames, "Max. analysis rate (fps): ", textFieldFactory(
+            Settings.ParameterTypes.maxAnalysisRate, settings_.maxAnalysisRate));
+      addRow(frames, "", checkBox("Adaptive rate", settings_.adaptiveRate,
+            Settings.ParameterTypes.adaptiveRate));
+      addRow(frames, "Min. analysis rate (fps): ", textFieldFactory(
+            Settings.ParameterTypes.minAnalysisRate, settings_.minAnalysisRate));
+
+      JPanel devices = tab(tabs, "Devices");
+      addRow(devices, "Pump lag (s): ", textFieldFactory(Settings.ParameterTypes.pumpLag,
+            settings_.pumpLag));
+      addRow(devices, "Release time (s): ", textFieldFactory(
+            Settings.ParameterTypes.releaseTime, settings_.releaseTime));
+      addRow(devices, "Device timeout (s): ", textFieldFactory(
+            Settings.ParameterTypes.deviceTimeout, settings_.deviceTimeout));
+      addRow(devices, "Pressure tolerance (kPa): ", textFieldFactory(
+            Settings.ParameterTypes.pressureTolerance, settings_.pressureTolerance));
+
+      JPanel stageImages = tab(tabs, "Stage images");
+      addRow(stageImages, "", checkBox("Save stage images", settings_.saveStageImages,
+            Settings.ParameterTypes.saveStageImages));
+      addRow(stageImages, "", checkBox("Intermediate stages",
+            settings_.saveIntermediateStages, Settings.ParameterTypes.saveIntermediateStages));
+      addRow(stageImages, "Policy: ", selector(StageImageWriter.Policy.values(),
+            settings_.stageImagePolicy, Settings.ParameterTypes.stageImagePolicy));
+      addRow(stageImages, "Every nth frame: ", textFieldFactory(
+            Settings.ParameterTypes.stageImageEveryNth, settings_.stageImageEveryNth));
+      addRow(stageImages, "Format: ", selector(StageImageWriter.Format.values(),
+            settings_.stageImageFormat, Settings.ParameterTypes.stageImageFormat));
+
+      JPanel background = tab(tabs, "Background");
+      backgroundSelector = selector(BackgroundModel.Mode.values(), settings_.backgroundMode,
+            Settings.ParameterTypes.backgroundMode);
+      addRow(background, "Background: ", backgroundSelector);
+      addRow(background, "Background frames: ", textFieldFactory(
+            Settings.ParameterTypes.backgroundFrames, settings_.backgroundFrames));
+      JButton captureBackground = new JButton("Capture Background");
+      captureBackground.addActionListener(e -> onCaptureBackground());
+      background.add(captureBackground, "skip, wrap");
+
+      JPanel traps = tab(tabs, "Traps");
+      trapMapTextField = new JTextField(settings_.trapMapFile, 14);
+      trapMapTextField.addActionListener(e -> onTrapMapFile());
+      JButton browseTrapMap = new JButton("...");
+      browseTrapMap.addActionListener(e -> onBrowseTrapMap());
+      traps.add(new JLabel("Trap map file: "));
+      traps.add(trapMapTextField, "split 2");
+      traps.add(browseTrapMap, "wrap");
+      addRow(traps, "Trap margin: ", textFieldFactory(Settings.ParameterTypes.trapMargin,
+            settings_.trapMargin));
+      JButton calibrateTraps = new JButton("Calibrate Traps");
+      calibrateTraps.addActionListener(e -> onCalibrateTraps());
+      traps.add(calibrateTraps, "skip, wrap");
+   }
+
+   // Takes the current image as the background, it should show the empty chip
+   private void onCaptureBackground() {
+      try {
+         deviceControl_.captureBackground();
+         backgroundSelector.setSelectedItem(settings_.backgroundMode);
+      } catch (Exception e) {
+         studio_.getLogManager().logError(e, "Could not capture the background.");
+      }
+   }
+
+   private void onTrapMapFile() {
+      settings_.setParameter(Settings.ParameterTypes.trapMapFile,
+            trapMapTextField.getText().trim());
+   }
+
+   private void onBrowseTrapMap() {
+      JFileChooser chooser = new JFileChooser();
+      if (!settings_.trapMapFile.isEmpty()) {
+         chooser.setSelectedFile(new File(settings_.trapMapFile));
+      }
+      if (chooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+         trapMapTextField.setText(chooser.getSelectedFile().getPath());
+         onTrapMapFile();
+      }
+   }
+
+   // Finds the traps in the current image, which should show a particle in every
+   // trap, and saves them to the trap map file. Runs off the event thread.
+   private void onCalibrateTraps() {
+      onTrapMapFile();
+      CompletableFuture.runAsync(() -> {
+         try {
+            deviceControl_.calibrateTrapMap();
+         } catch (Exception e) {
+            throw new CompletionException(e);
+         }
+      }).exceptionally(e -> {
+         studio_.getLogManager().logError(e, "Could not calibrate the trap map.");
+         return null;
+      });
+   }
+
+   private static JPanel tab(JTabbedPane tabs, String title) {
+      JPanel tab = new JPanel(new MigLayout("fill, insets 2, gap 2, flowx"));
+      tabs.addTab(title, tab);
+      return tab;
+   }
+
+   private static void addRow(JPanel tab, String label, Component component) {
+      tab.add(new JLabel(label));
+      tab.add(component, "wrap");
+   }
+
+   private JCheckBox checkBox(String text, boolean selected, Settings.ParameterTypes parameter) {
+      JCheckBox checkBox = new JCheckBox(text, selected);
+      checkBox.addActionListener(e -> {
+         settings_.setParameter(parameter, checkBox.isSelected());
+      });
+      return checkBox;
+   }
+
+   private <E> JComboBox<E> selector(E[] values, E selected, Settings.ParameterTypes parameter) {
+      JComboBox<E> selector = new JComboBox<>(values);
+      selector.setSelectedItem(selected);
+      selector.addActionListener(e -> {
+         settings_.setParameter(parameter, selector.getSelectedItem());
+      });
+      return selector;
+   }
+
+   // Same as the fields of the SettingsPanel, starting at the value of the setting
+   private JFormattedTextField textFieldFactory(Settings.ParameterTypes parameter,
+                                                double initial) {
+      JFormattedTextField textField = new JFormattedTextField(formatter);
+      textField.setBackground(new Color(240, 240, 240));
+      textField.setForeground(new Color(60, 60, 60));
+      textField.setValue(initial);
+      textField.setColumns(7);
+      textField.addKeyListener(new KeyAdapter() {
+         public void keyPressed(KeyEvent e) {
+            if (e.getKeyCode() == KeyEvent.VK_ENTER) {
+               try {
+                  double value = Double.parseDouble(textField.getText());
+                  textField.setValue(value);
+               } catch (Exception exception) {
+                  studio_.getLogManager().logError(exception, "Error while setting value.");
+               }
+               settings_.setParameter(parameter,
+                     Double.parseDouble(textField.getValue().toString()));
+            }
+         }
+      });
+      return textField;
+   }
+}
@@ -3,6 +3,7 @@ package org.micromanager.plugins.traptracker;
 import java.awt.Toolkit;
 import javax.swing.JButton;
 import javax.swing.JFrame;
+import javax.swing.SwingUtilities;
 import javax.swing.WindowConstants;
 import net.miginfocom.swing.MigLayout;
 import org.micromanager.Studio;
@@ -16,6 +17,7 @@ public class MainFrame extends JFrame {
    JButton toggleFlow;
    JButton toggleAutomation;
    private final SettingsPanel settingsPanel;
+   private final AnalysisPanel analysisPanel;
    private final DeviceControl deviceControl;
    private final Settings settings_;
    private final Graph graph;
@@ -34,7 +36,10 @@ public class MainFrame extends JFrame {
       this.add(graph, "span 5");
 
       settingsPanel = new SettingsPanel(studio_, settings_);
-      this.add(settingsPanel, "wrap");
+      this.add(settingsPanel, "top");
+
+      analysisPanel = new AnalysisPanel(studio_, settings_, deviceControl);
+      this.add(analysisPanel, "top, wrap");
 
       configureButtons();
 
@@ -54,18 +59,10 @@ public class MainFrame extends JFrame {
       toggleTrap = new JButton("Close Trap");
       toggleTrap.addActionListener(e -> {
          if (toggleTrap.getText().equals("Close Trap")) {
-            try {
-               deviceControl.closeTrap();
-            } catch (Exception ex) {
-               throw new RuntimeException(ex);
-            }
+            deviceControl.closeTrap().exceptionally(this::logError);
             toggleTrap.setText("Open Trap");
          } else {
-            try {
-               deviceControl.openTrap();
-            } catch (Exception ex) {
-               throw new RuntimeException(ex);
-            }
+            deviceControl.openTrap().exceptionally(this::logError);
             toggleTrap.setText("Close Trap");
          }
       });
@@ -74,18 +71,10 @@ public class MainFrame extends JFrame {
       toggleFlow = new JButton("Start Flow");
       toggleFlow.addActionListener(e -> {
          if (toggleFlow.getText().equals("Start Flow")) {
-            try {
-               deviceControl.startFlow();
-            } catch (Exception ex) {
-               throw new RuntimeException(ex);
-            }
+            deviceControl.startFlow().exceptionally(this::logError);
             toggleFlow.setText("Stop Flow");
          } else {
-            try {
-               deviceControl.stopFlow();
-            } catch (Exception ex) {
-               throw new RuntimeException(ex);
-            }
+            deviceControl.stopFlow().exceptionally(this::logError);
             toggleFlow.setText("Start Flow");
          }
       });
@@ -94,12 +83,11 @@ public class MainFrame extends JFrame {
       toggleAutomation = new JButton("Start Automation");
       toggleAutomation.addActionListener(e -> {
          if (toggleAutomation.getText().equals("Start Automation")) {
-            try {
-               deviceControl.startAutomation();
-               graph.start();
-            } catch (Exception ex) {
-               throw new RuntimeException(ex);
-            }
+            deviceControl.startAutomation().exceptionally(ex -> {
+               SwingUtilities.invokeLater(() -> toggleAutomation.setText("Start Automation"));
+               return logError(ex);
+            });
+            graph.start();
             toggleAutomation.setText("Stop Automation");
          } else {
             try {
@@ -113,4 +101,10 @@ public class MainFrame extends JFrame {
       });
       this.add(toggleAutomation);
    }
+
+   // The pumps are commanded in the background, failures end up in the log
+   private Void logError(Throwable e) {
+      studio_.getLogManager().logError(e);
+      return null;
+   }
 }
@@ -5,6 +5,12 @@ import java.beans.PropertyChangeSupport;
 import java.util.concurrent.atomic.AtomicInteger;
 import mmcorej.DeviceType;
 import org.micromanager.Studio;
+import org.micromanager.plugins.traptracker.functions.AutoThreshold;
+import org.micromanager.plugins.traptracker.functions.BackgroundModel;
+import org.micromanager.plugins.traptracker.functions.Frame;
+import org.micromanager.plugins.traptracker.functions.FrameGrabber;
+import org.micromanager.plugins.traptracker.functions.ParticleCounter;
+import org.micromanager.plugins.traptracker.functions.StageImageWriter;
 
 
 public final class Settings {
@@ -19,6 +25,36 @@ public final class Settings {
       pixelSize,
       minSize,
       isRunning,
+      backgroundMode,
+      backgroundFrames,
+      trapMapFile,
+      trapMargin,
+      blur,
+      labeling,
+      cutoffCircularity,
+      analysisThreads,
+      fusedPretreatment,
+      bitPackedMask,
+      logStageTimings,
+      incrementalAnalysis,
+      changeTolerance,
+      autoThreshold,
+      thresholdWindow,
+      ingestion,
+      analysisWorkers,
+      frameQueueSize,
+      maxAnalysisRate,
+      adaptiveRate,
+      minAnalysisRate,
+      pumpLag,
+      releaseTime,
+      deviceTimeout,
+      pressureTolerance,
+      saveStageImages,
+      saveIntermediateStages,
+      stageImagePolicy,
+      stageImageEveryNth,
+      stageImageFormat,
       None
    }
 
@@ -52,8 +88,41 @@ public final class Settings {
    public int imageHeight = 0;
    public int imageDepth = 0;
    public int minSize = 0;
+   public ParticleCounter.Blur blur = ParticleCounter.Blur.MEAN; // GAUSSIAN is 3 box passes
+   public ParticleCounter.Labeling labeling = ParticleCounter.Labeling.FLOOD_FILL;
+   public double cutoffCircularity = 0; // Perimeter^2/Area, ~23 for round particles, 0 is off
+   public int analysisThreads = 1; // More than 1 processes the frame in parallel strips
+   public boolean fusedPretreatment = false; // Single pass to a byte mask, no stage images
+   public boolean bitPackedMask = false; // Fused pass writes one bit per pixel instead
+   public boolean logStageTimings = false;
+   public boolean incrementalAnalysis = false; // Only redo the tiles that changed
+   public int changeTolerance = 0; // Pixel change ignored by the incremental analysis
+   public AutoThreshold.Method autoThreshold = AutoThreshold.Method.FIXED; // Or per frame
+   public int thresholdWindow = 1; // Frames whose histograms are pooled by the auto threshold
+   public FrameGrabber.Mode ingestion = FrameGrabber.Mode.POLL;
+   public int analysisWorkers = 1; // Frames analysed at the same time by the pipeline
+   public int frameQueueSize = 4; // Frames waiting for analysis before the oldest is dropped
+   public double maxAnalysisRate = 10; // Frames per second in SEQUENCE mode, 0 is unlimited
+   public boolean adaptiveRate = false; // SEQUENCE mode slows down far from the trigger
+   public double minAnalysisRate = 1; // Frames per second of the adaptive rate, far from it
+   public double pumpLag = 0; // Seconds the flow takes to stop, stops it early, 0 is off
+   public double releaseTime = 10; // Seconds of flow to release the particles, once it is up
+   public double deviceTimeout = 30; // Seconds for a pump to reach its setpoint
+   public double pressureTolerance = 0.5; // kPa from the setpoint that counts as reached
 
-   public byte[] background;
+   public boolean saveStageImages = true;
+   public boolean saveIntermediateStages = true; // Otherwise only raw and final image
+   public StageImageWriter.Policy stageImagePolicy = StageImageWriter.Policy.DROP_OLDEST;
+   public int stageImageEveryNth = 10; // For the EVERY_NTH policy
+   public StageImageWriter.Format stageImageFormat = StageImageWriter.Format.JPEG; // RAW/TIFF are lossless
+
+   public String trapMapFile = ""; // Traps as x,y,width,height lines, empty is full frame
+   public int trapMargin = 10; // Pixels around a particle when calibrating the trap map
+   public String batchInput = ""; // Directory or TIFF stack re-analysed offline
+
+   public BackgroundModel.Mode backgroundMode = BackgroundModel.Mode.NONE;
+   public int backgroundFrames = 10; // Empty frames averaged by the ROLLING_MEAN background
+   public Frame background; // Reference of the empty chip, null is the first frame
 
    public Settings(Studio studio) {
       studio_ = studio;
@@ -110,6 +179,126 @@ public final class Settings {
             support.firePropertyChange("isRunning", isRunning, value);
             isRunning = (double) value;
             break;
+         case backgroundMode:
+            support.firePropertyChange("backgroundMode", backgroundMode, value);
+            backgroundMode = (BackgroundModel.Mode) value;
+            break;
+         case backgroundFrames:
+            support.firePropertyChange("backgroundFrames", backgroundFrames, value);
+            backgroundFrames = ((Double) value).intValue();
+            break;
+         case trapMapFile:
+            support.firePropertyChange("trapMapFile", trapMapFile, value);
+            trapMapFile = (String) value;
+            break;
+         case trapMargin:
+            support.firePropertyChange("trapMargin", trapMargin, value);
+            trapMargin = ((Double) value).intValue();
+            break;
+         case blur:
+            support.firePropertyChange("blur", blur, value);
+            blur = (ParticleCounter.Blur) value;
+            break;
+         case labeling:
+            support.firePropertyChange("labeling", labeling, value);
+            labeling = (ParticleCounter.Labeling) value;
+            break;
+         case cutoffCircularity:
+            support.firePropertyChange("cutoffCircularity", cutoffCircularity, value);
+            cutoffCircularity = (double) value;
+            break;
+         case analysisThreads:
+            support.firePropertyChange("analysisThreads", analysisThreads, value);
+            analysisThreads = ((Double) value).intValue();
+            break;
+         case fusedPretreatment:
+            support.firePropertyChange("fusedPretreatment", fusedPretreatment, value);
+            fusedPretreatment = (boolean) value;
+            break;
+         case bitPackedMask:
+            support.firePropertyChange("bitPackedMask", bitPackedMask, value);
+            bitPackedMask = (boolean) value;
+            break;
+         case logStageTimings:
+            support.firePropertyChange("logStageTimings", logStageTimings, value);
+            logStageTimings = (boolean) value;
+            break;
+         case incrementalAnalysis:
+            support.firePropertyChange("incrementalAnalysis", incrementalAnalysis, value);
+            incrementalAnalysis = (boolean) value;
+            break;
+         case changeTolerance:
+            support.firePropertyChange("changeTolerance", changeTolerance, value);
+            changeTolerance = ((Double) value).intValue();
+            break;
+         case autoThreshold:
+            support.firePropertyChange("autoThreshold", autoThreshold, value);
+            autoThreshold = (AutoThreshold.Method) value;
+            break;
+         case thresholdWindow:
+            support.firePropertyChange("thresholdWindow", thresholdWindow, value);
+            thresholdWindow = ((Double) value).intValue();
+            break;
+         case ingestion:
+            support.firePropertyChange("ingestion", ingestion, value);
+            ingestion = (FrameGrabber.Mode) value;
+            break;
+         case analysisWorkers:
+            support.firePropertyChange("analysisWorkers", analysisWorkers, value);
+            analysisWorkers = ((Double) value).intValue();
+            break;
+         case frameQueueSize:
+            support.firePropertyChange("frameQueueSize", frameQueueSize, value);
+            frameQueueSize = ((Double) value).intValue();
+            break;
+         case maxAnalysisRate:
+            support.firePropertyChange("maxAnalysisRate", maxAnalysisRate, value);
+            maxAnalysisRate = (double) value;
+            break;
+         case adaptiveRate:
+            support.firePropertyChange("adaptiveRate", adaptiveRate, value);
+            adaptiveRate = (boolean) value;
+            break;
+         case minAnalysisRate:
+            support.firePropertyChange("minAnalysisRate", minAnalysisRate, value);
+            minAnalysisRate = (double) value;
+            break;
+         case pumpLag:
+            support.firePropertyChange("pumpLag", pumpLag, value);
+            pumpLag = (double) value;
+            break;
+         case releaseTime:
+            support.firePropertyChange("releaseTime", releaseTime, value);
+            releaseTime = (double) value;
+            break;
+         case deviceTimeout:
+            support.firePropertyChange("deviceTimeout", deviceTimeout, value);
+            deviceTimeout = (double) value;
+            break;
+         case pressureTolerance:
+            support.firePropertyChange("pressureTolerance", pressureTolerance, value);
+            pressureTolerance = (double) value;
+            break;
+         case saveStageImages:
+            support.firePropertyChange("saveStageImages", saveStageImages, value);
+            saveStageImages = (boolean) value;
+            break;
+         case saveIntermediateStages:
+            support.firePropertyChange("saveIntermediateStages", saveIntermediateStages, value);
+            saveIntermediateStages = (boolean) value;
+            break;
+         case stageImagePolicy:
+            support.firePropertyChange("stageImagePolicy", stageImagePolicy, value);
+            stageImagePolicy = (StageImageWriter.Policy) value;
+            break;
+         case stageImageEveryNth:
+            support.firePropertyChange("stageImageEveryNth", stageImageEveryNth, value);
+            stageImageEveryNth = ((Double) value).intValue();
+            break;
+         case stageImageFormat:
+            support.firePropertyChange("stageImageFormat", stageImageFormat, value);
+            stageImageFormat = (StageImageWriter.Format) value;
+            break;
          default:
             studio_.core().logMessage("Unknown parameter type encountered");
             break;
@@ -0,0 +1,33 @@
+package org.micromanager.plugins.traptracker.functions;
+
+// Destination of the messages of the analysis. The plugin forwards them to the
+// Micro-Manager log, headless runs print them or drop them.
+public interface AnalysisLog {
+
+   AnalysisLog SYSTEM_OUT = new AnalysisLog() {
+      @Override
+      public void logMessage(String message) {
+         System.out.println(message);
+      }
+
+      @Override
+      public void logError(Exception e, String message) {
+         System.err.println(message);
+         e.printStackTrace();
+      }
+   };
+
+   AnalysisLog NONE = new AnalysisLog() {
+      @Override
+      public void logMessage(String message) {
+      }
+
+      @Override
+      public void logError(Exception e, String message) {
+      }
+   };
+
+   void logMessage(String message);
+
+   void logError(Exception e, String message);
+}
@@ -0,0 +1,58 @@
+package org.micromanager.plugins.traptracker.functions;
+
+// Parameters of the particle counting. The defaults are the values DeviceControl
+// uses for an 8 bit camera.
+public class AnalysisParameters {
+
+   public int sigma = 3;
+   public int threshold = (int) (255 * 0.85);
+   public int minSize = 0;
+   public ParticleCounter.Blur blur = ParticleCounter.Blur.MEAN; // Traps/incremental keep MEAN
+   public ParticleCounter.Labeling labeling = ParticleCounter.Labeling.FLOOD_FILL;
+   public double cutoffCircularity = 0; // Perimeter^2/Area, 0 is off
+   public boolean fused = false; // Single pass pretreatment, no stage images
+   public boolean bitPacked = false; // Fused pass writes a bit mask
+   public boolean incremental = false; // Only redo the tiles that changed since the last frame
+   public int changeTolerance = 0; // Pixel change ignored by the incremental analysis
+   public BackgroundModel.Mode background = BackgroundModel.Mode.NONE; // Subtracted first
+   public int backgroundFrames = 10; // Frames averaged by a rolling background
+   public AutoThreshold.Method autoThreshold = AutoThreshold.Method.FIXED; // Else from histogram
+   public int thresholdWindow = 1; // Frames whose histograms are pooled
+
+   public AnalysisParameters() {
+   }
+
+   public AnalysisParameters(int sigma, int threshold, int minSize) {
+      this.sigma = sigma;
+      this.threshold = threshold;
+      this.minSize = minSize;
+   }
+
+   public AnalysisParameters copy() {
+      return new AnalysisParameters().set(this);
+   }
+
+   // Takes all parameters of other, without allocating
+   public AnalysisParameters set(AnalysisParameters other) {
+      sigma = other.sigma;
+      threshold = other.threshold;
+      minSize = other.minSize;
+      blur = other.blur;
+      labeling = other.labeling;
+      cutoffCircularity = other.cutoffCircularity;
+      fused = other.fused;
+      bitPacked = other.bitPacked;
+      incremental = other.incremental;
+      changeTolerance = other.changeTolerance;
+      background = other.background;
+      backgroundFrames = other.backgroundFrames;
+      autoThreshold = other.autoThreshold;
+      thresholdWindow = other.thresholdWindow;
+      return this;
+   }
+
+   @Override
+   public String toString() {
+      return "sigma " + sigma + ", threshold " + threshold + ", minSize " + minSize;
+   }
+}
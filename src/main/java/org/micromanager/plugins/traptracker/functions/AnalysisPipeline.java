@@ -0,0 +1,266 @@
+package org.micromanager.plugins.traptracker.functions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+// Runs the automation as three stages connected by bounded lock-free queues:
+//
+//    grabber thread -> frames -> analysis workers -> results -> device commands
+//
+// The grabber keeps taking frames while the workers analyse, and the workers
+// keep analysing while the devices are commanded. Every worker has an analyzer
+// of its own. When a queue is full its oldest entry is dropped, the newest frame
+// is the one that matters for the trigger. The device stage is the thread that
+// calls take, results can arrive out of frame order with more than one worker.
+public class AnalysisPipeline {
+
+   // Frames for the pipeline, returns null when keepRunning turns false first
+   @FunctionalInterface
+   public interface Source {
+      Frame next(BooleanSupplier keepRunning) throws Exception;
+   }
+
+   // Analysis of one worker thread, only ever called from that thread
+   @FunctionalInterface
+   public interface Worker {
+      AnalysisResult analyze(Frame frame) throws Exception;
+   }
+
+   // Result with the time its frame was grabbed, as given by System.nanoTime()
+   public static final class Analysed {
+      private final AnalysisResult result;
+      private final long grabNanos;
+
+      Analysed(AnalysisResult result, long grabNanos) {
+         this.result = result;
+         this.grabNanos = grabNanos;
+      }
+
+      public AnalysisResult getResult() {
+         return result;
+      }
+
+      public long getGrabNanos() {
+         return grabNanos;
+      }
+   }
+
+   // Counters of a stage. The queue depth is the number of entries waiting for
+   // the stage, the throughput is per second since the start of the pipeline.
+   public static final class Stage {
+      private final String name;
+      private final BoundedQueue<?> input;
+      private final AtomicLong count = new AtomicLong();
+      private final AtomicLong dropped = new AtomicLong();
+      private volatile long start = System.nanoTime();
+
+      Stage(String name, BoundedQueue<?> input) {
+         this.name = name;
+         this.input = input;
+      }
+
+      public long getCount() {
+         return count.get();
+      }
+
+      // Entries dropped from the input queue because it was full
+      public long getDropped() {
+         return dropped.get();
+      }
+
+      public int getQueueDepth() {
+         return (input == null) ? 0 : input.size();
+      }
+
+      public double getThroughput() {
+         double seconds = (System.nanoTime() - start) / 1e9;
+         return (seconds > 0) ? count.get() / seconds : 0;
+      }
+
+      @Override
+      public String toString() {
+         return String.format(Locale.ROOT, "%s %d (%.1f/s, queue %d, dropped %d)",
+               name, getCount(), getThroughput(), getQueueDepth(), getDropped());
+      }
+   }
+
+   private static final long IDLE_WAIT = TimeUnit.MILLISECONDS.toNanos(1);
+
+   private final Source source;
+   private final List<Worker> workers;
+   private final BoundedQueue<Grabbed> frames;
+   private final BoundedQueue<Analysed> results;
+   private final Stage grabStage;
+   private final Stage analysisStage;
+   private final Stage commandStage;
+   private final List<Thread> threads = new ArrayList<>();
+
+   private volatile boolean running = false;
+   private volatile Exception error;
+   private volatile Thread consumer;
+
+   // queueSize is the capacity of both queues, rounded up to a power of 2
+   public AnalysisPipeline(Source source, List<Worker> workers, int queueSize) {
+      if (workers.isEmpty()) {
+         throw new IllegalArgumentException("The pipeline needs at least one worker");
+      }
+      this.source = source;
+      this.workers = new ArrayList<>(workers);
+      frames = new BoundedQueue<>(queueSize);
+      results = new BoundedQueue<>(queueSize);
+      grabStage = new Stage("grabbed", null);
+      analysisStage = new Stage("analysed", frames);
+      commandStage = new Stage("commanded", results);
+   }
+
+   public void start() {
+      running = true;
+      for (Stage stage : new Stage[] {grabStage, analysisStage, commandStage}) {
+         stage.start = System.nanoTime();
+      }
+      for (int i = 0; i < workers.size(); i++) {
+         Worker worker = workers.get(i);
+         threads.add(new Thread(() -> analyse(worker), "TrapTracker analysis " + i));
+      }
+      threads.add(new Thread(this::grab, "TrapTracker grabber"));
+      for (Thread thread : threads) {
+         thread.start();
+      }
+   }
+
+   // Stops all stages, entries still in the queues are dropped
+   public void stop() {
+      running = false;
+      wakeAll();
+   }
+
+   public void join() throws InterruptedException {
+      for (Thread thread : threads) {
+         thread.join();
+      }
+      threads.clear();
+   }
+
+   // False once stopped, or when a stage failed
+   public boolean isRunning() {
+      return running;
+   }
+
+   // First exception of the grabber or a worker, which stops the pipeline
+   public Exception getError() {
+      return error;
+   }
+
+   // Next result for the device stage, waits up to timeout nanoseconds. Returns
+   // null when there is none, or the pipeline stopped.
+   public Analysed take(long timeout) {
+      consumer = Thread.currentThread();
+      long deadline = System.nanoTime() + timeout;
+      Analysed analysed = results.poll();
+      while (analysed == null && running) {
+         long left = deadline - System.nanoTime();
+         if (left <= 0) {
+            break;
+         }
+         LockSupport.parkNanos(this, left);
+         analysed = results.poll();
+      }
+      if (analysed != null) {
+         commandStage.count.incrementAndGet();
+      }
+      return analysed;
+   }
+
+   public Stage getGrabStage() {
+      return grabStage;
+   }
+
+   public Stage getAnalysisStage() {
+      return analysisStage;
+   }
+
+   public Stage getCommandStage() {
+      return commandStage;
+   }
+
+   @Override
+   public String toString() {
+      return grabStage + ", " + analysisStage + ", " + commandStage;
+   }
+
+   private void grab() {
+      try {
+         while (running) {
+            Frame frame = source.next(this::isRunning);
+            long nanos = System.nanoTime();
+            if (frame == null) {
+               break;
+            }
+            grabStage.count.incrementAndGet();
+            offer(frames, new Grabbed(frame, nanos), analysisStage);
+            for (int i = 0; i < workers.size(); i++) {
+               LockSupport.unpark(threads.get(i));
+            }
+         }
+      } catch (Exception e) {
+         fail(e);
+      }
+   }
+
+   private void analyse(Worker worker) {
+      try {
+         while (running) {
+            Grabbed grabbed = frames.poll();
+            if (grabbed == null) {
+               // The grabber unparks the workers for every frame
+               LockSupport.parkNanos(this, IDLE_WAIT);
+               continue;
+            }
+            AnalysisResult result = worker.analyze(grabbed.frame);
+            analysisStage.count.incrementAndGet();
+            offer(results, new Analysed(result, grabbed.nanos), commandStage);
+            LockSupport.unpark(consumer);
+         }
+      } catch (Exception e) {
+         fail(e);
+      }
+   }
+
+   // Makes room by dropping the oldest entry when the queue is full
+   private static <T> void offer(BoundedQueue<T> queue, T item, Stage consumer) {
+      while (!queue.offer(item)) {
+         if (queue.poll() != null) {
+            consumer.dropped.incrementAndGet();
+         }
+      }
+   }
+
+   private void fail(Exception e) {
+      if (error == null) {
+         error = e;
+      }
+      stop();
+   }
+
+   private void wakeAll() {
+      for (Thread thread : threads) {
+         LockSupport.unpark(thread);
+      }
+      LockSupport.unpark(consumer);
+   }
+
+   private static final class Grabbed {
+      private final Frame frame;
+      private final long nanos;
+
+      Grabbed(Frame frame, long nanos) {
+         this.frame = frame;
+         this.nanos = nanos;
+      }
+   }
+}
@@ -0,0 +1,77 @@
+package org.micromanager.plugins.traptracker.functions;
+
+// Chooses the interval between analysed frames while the traps fill. With the
+// traps nearly empty frames are analysed rarely, the closer the count gets to
+// the trigger value the more often, up to the fastest rate once the trigger is
+// at most one particle away.
+//
+// The interval is a fraction of the predicted time to the trigger, the number of
+// traps still to fill over the fill rate, so the count cannot jump far past the
+// trigger between two frames. The fill rate is an average of the measured rate
+// over the last few seconds. Before anything has filled the interval follows the
+// distance to the trigger alone.
+public class AnalysisRateController {
+
+   // Frames analysed in the predicted time to the trigger, at least
+   private static final double SAMPLES_TO_TRIGGER = 4;
+   // Time constant of the fill rate average
+   private static final double RATE_TIME_CONSTANT = 5e9;
+
+   private long minInterval = 0;
+   private long maxInterval = 1_000_000_000L;
+   private long interval = maxInterval;
+   private double rate; // Traps per nanosecond
+   private long lastNanos;
+   private int lastFilled;
+   private boolean started;
+
+   // Intervals in nanoseconds, minInterval is the fastest rate (0 for every
+   // camera frame), maxInterval the slowest
+   public void configure(long minInterval, long maxInterval) {
+      this.minInterval = minInterval;
+      this.maxInterval = Math.max(minInterval, maxInterval);
+      reset();
+   }
+
+   public void reset() {
+      interval = maxInterval;
+      rate = 0;
+      started = false;
+   }
+
+   // Takes the count of the frame taken at nanos (System.nanoTime()) and returns
+   // the interval until the next frame should be taken
+   public long update(long nanos, int trapsFilled, double triggerValue) {
+      if (started && nanos > lastNanos) {
+         double dt = nanos - lastNanos;
+         double measured = Math.max(0, trapsFilled - lastFilled) / dt;
+         // Exponential average over time, whatever the interval was
+         double weight = 1 - Math.exp(-dt / RATE_TIME_CONSTANT);
+         rate += weight * (measured - rate);
+      }
+      started = true;
+      lastNanos = nanos;
+      lastFilled = trapsFilled;
+
+      double remaining = triggerValue - trapsFilled - 1;
+      if (remaining <= 0) {
+         interval = minInterval;
+         return interval;
+      }
+      // Far from the trigger relative to the number of traps, sample sparsely
+      double byDistance = minInterval
+            + (maxInterval - minInterval) * Math.min(1, remaining / Math.max(1, triggerValue));
+      double byTime = (rate > 0) ? remaining / rate / SAMPLES_TO_TRIGGER : maxInterval;
+      interval = (long) Math.max(minInterval, Math.min(byDistance, byTime));
+      return interval;
+   }
+
+   public long getInterval() {
+      return interval;
+   }
+
+   // Averaged fill rate in traps per second
+   public double getFillRate() {
+      return rate * 1e9;
+   }
+}
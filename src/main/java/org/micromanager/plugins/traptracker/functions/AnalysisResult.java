@@ -0,0 +1,89 @@
+package org.micromanager.plugins.traptracker.functions;
+
+// Outcome of analysing one frame. Unlike the engine buffers, a result is new for
+// every frame: the AnalysisPipeline hands it to another thread, which may still
+// hold it while the next frame is analysed.
+public final class AnalysisResult {
+
+   private final long frameNumber;
+   private final int count;
+   private final int threshold;
+   private final long[] stageNanos;
+   private final int[] trapCounts;
+
+   AnalysisResult(long frameNumber, int count, int threshold, StageTimer timer) {
+      this(frameNumber, count, threshold, timer, null);
+   }
+
+   AnalysisResult(long frameNumber, int count, int threshold, StageTimer timer,
+                  int[] trapCounts) {
+      this.frameNumber = frameNumber;
+      this.count = count;
+      this.threshold = threshold;
+      this.trapCounts = trapCounts;
+      StageTimer.Stage[] stages = StageTimer.Stage.values();
+      stageNanos = new long[stages.length];
+      for (StageTimer.Stage stage : stages) {
+         stageNanos[stage.ordinal()] = timer.getNanos(stage);
+      }
+   }
+
+   public long getFrameNumber() {
+      return frameNumber;
+   }
+
+   // Number of particles found, only those inside the traps with a trap map
+   public int getCount() {
+      return count;
+   }
+
+   // Threshold the frame was analysed with, which the automatic threshold can
+   // change from frame to frame
+   public int getThreshold() {
+      return threshold;
+   }
+
+   // Number of particles per trap, null without a trap map
+   public int[] getTrapCounts() {
+      return trapCounts;
+   }
+
+   // Number of traps holding at least one particle. Without a trap map every
+   // particle is taken to be in its own trap.
+   public int getTrapsFilled() {
+      if (trapCounts == null) {
+         return count;
+      }
+      int filled = 0;
+      for (int trapCount : trapCounts) {
+         if (trapCount > 0) {
+            filled++;
+         }
+      }
+      return filled;
+   }
+
+   public long getNanos(StageTimer.Stage stage) {
+      return stageNanos[stage.ordinal()];
+   }
+
+   public long getTotalNanos() {
+      long total = 0;
+      for (long n : stageNanos) {
+         total += n;
+      }
+      return total;
+   }
+
+   // Stage timings in the format of StageTimer
+   @Override
+   public String toString() {
+      StringBuilder sb = new StringBuilder("Stage timings (ms):");
+      for (StageTimer.Stage stage : StageTimer.Stage.values()) {
+         if (stageNanos[stage.ordinal()] > 0) {
+            sb.append(String.format(" %s %.2f", stage, stageNanos[stage.ordinal()] / 1e6));
+         }
+      }
+      return sb.append(String.format(", total %.2f", getTotalNanos() / 1e6)).toString();
+   }
+}
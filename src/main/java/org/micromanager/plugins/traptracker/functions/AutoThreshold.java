@@ -0,0 +1,180 @@
+package org.micromanager.plugins.traptracker.functions;
+
+// Picks the threshold of every frame from the histogram of its raw pixels, so it
+// follows the exposure and bit depth of the camera instead of being a fixed
+// fraction of the range. The histograms of the last window frames are pooled,
+// with a window of 1 every frame gets its own threshold.
+//
+// Both methods split the histogram into dark particles and bright background:
+//  - OTSU maximises the variance between the two classes, it suits frames with
+//    many particles
+//  - TRIANGLE takes the point of the histogram farthest below the line from the
+//    background peak to the end of the dark tail, it suits frames where the
+//    particles are a small fraction of the pixels
+// The threshold is returned for the inverted image, as the pipeline takes it.
+public class AutoThreshold {
+
+   public enum Method {
+      FIXED, // The threshold of the parameters
+      OTSU,
+      TRIANGLE
+   }
+
+   public static final int MAX_WINDOW = 64;
+
+   private final Histogram histogram = new Histogram();
+   private Method method = Method.FIXED;
+   private int window = 1;
+   private int[][] history = new int[0][];
+   private long[] sum = new long[0];
+   private int frames = 0;
+   private int oldest = 0;
+   private int threshold = -1;
+
+   public void configure(Method method, int window) {
+      int n = Math.max(1, Math.min(MAX_WINDOW, window));
+      if (method != this.method || n != this.window) {
+         this.method = method;
+         this.window = n;
+         clear();
+      }
+   }
+
+   public Method getMethod() {
+      return method;
+   }
+
+   public void clear() {
+      frames = 0;
+      oldest = 0;
+      threshold = -1;
+   }
+
+   // Histogram to fill with the pixels of the next frame
+   public Histogram begin(int maxValue) {
+      if (maxValue != histogram.getMaxValue()) {
+         clear();
+      }
+      histogram.reset(maxValue);
+      return histogram;
+   }
+
+   // Adds the histogram of the frame to the window and updates the threshold
+   public void end() {
+      int bins = histogram.getBins();
+      if (history.length != window || sum.length != bins) {
+         history = new int[window][bins];
+         sum = new long[bins];
+         frames = 0;
+         oldest = 0;
+      }
+      int[] counts = histogram.getCounts();
+      int slot;
+      if (frames < window) {
+         slot = frames++;
+         if (slot == 0) {
+            for (int b = 0; b < bins; b++) {
+               sum[b] = 0;
+            }
+         }
+      } else {
+         slot = oldest;
+         oldest = (oldest + 1) % window;
+         for (int b = 0; b < bins; b++) {
+            sum[b] -= history[slot][b];
+         }
+      }
+      for (int b = 0; b < bins; b++) {
+         sum[b] += counts[b];
+      }
+      System.arraycopy(counts, 0, history[slot], 0, bins);
+
+      int bin = (method == Method.TRIANGLE) ? triangle(sum) : otsu(sum);
+      // Foreground are the pixels up to the upper value of the bin, after
+      // inverting the pixels above max - value - 1
+      threshold = Math.max(0, histogram.getMaxValue() - histogram.upperValue(bin) - 1);
+   }
+
+   public boolean hasThreshold() {
+      return threshold >= 0;
+   }
+
+   // Threshold for the inverted image, -1 before the first frame
+   public int getThreshold() {
+      return threshold;
+   }
+
+   // Last bin of the dark class
+   static int otsu(long[] h) {
+      double total = 0;
+      double sumAll = 0;
+      for (int b = 0; b < h.length; b++) {
+         total += h[b];
+         sumAll += (double) b * h[b];
+      }
+      double w0 = 0;
+      double sum0 = 0;
+      double best = -1;
+      int split = 0;
+      for (int b = 0; b < h.length; b++) {
+         w0 += h[b];
+         if (w0 == 0) {
+            continue;
+         }
+         double w1 = total - w0;
+         if (w1 == 0) {
+            break;
+         }
+         sum0 += (double) b * h[b];
+         double difference = sum0 / w0 - (sumAll - sum0) / w1;
+         double between = w0 * w1 * difference * difference;
+         if (between > best) {
+            best = between;
+            split = b;
+         }
+      }
+      return split;
+   }
+
+   // Last bin of the dark class, on the longer side of the peak
+   static int triangle(long[] h) {
+      int low = -1;
+      int high = -1;
+      int peak = 0;
+      for (int b = 0; b < h.length; b++) {
+         if (h[b] > 0) {
+            if (low < 0) {
+               low = b;
+            }
+            high = b;
+         }
+         if (h[b] > h[peak]) {
+            peak = b;
+         }
+      }
+      if (low < 0 || low == high) {
+         return Math.max(low, 0);
+      }
+      // The end of the tail is taken one bin outside the histogram, at 0
+      boolean darkTail = peak - low >= high - peak;
+      int end = darkTail ? Math.max(low - 1, 0) : Math.min(high + 1, h.length - 1);
+      double dx = peak - end;
+      double dy = h[peak] - ((end == low - 1 || end == high + 1) ? 0 : h[end]);
+      int from = Math.min(end, peak);
+      int to = Math.max(end, peak);
+      double best = -1;
+      int split = peak;
+      for (int b = from; b <= to; b++) {
+         // Distance below the line, up to the constant norm of the line
+         double distance = dy * (b - end) - dx * h[b];
+         if (!darkTail) {
+            distance = -distance;
+         }
+         if (distance > best) {
+            best = distance;
+            split = b;
+         }
+      }
+      return darkTail ? split : Math.max(split - 1, 0);
+   }
+}
@@ -0,0 +1,153 @@
+package org.micromanager.plugins.traptracker.functions;
+
+// Per-pixel background of the chip with empty traps, subtracted from every frame
+// before the pretreatment. A corrected pixel is raw - background + max, so the
+// background becomes white and, after inverting, 0; the threshold is then the
+// darkness relative to the background, which is insensitive to uneven or
+// drifting illumination.
+//
+// The background is either a single reference frame, or the mean of the last N
+// frames learned. All buffers are allocated when the frame size changes only.
+public class BackgroundModel {
+
+   public enum Mode {
+      NONE,
+      REFERENCE,   // A single frame
+      ROLLING_MEAN // Mean of the last N frames
+   }
+
+   public static final int MAX_FRAMES = 256;
+
+   private Mode mode = Mode.NONE;
+   private int frames = 1;
+
+   private int[] background = new int[0];
+   private int[] sum = new int[0];
+   private Frame window; // Learned frames, stacked vertically
+   private int learned = 0;
+   private int oldest = 0;
+   private int mean = 0;
+   private Frame corrected;
+
+   public void configure(Mode mode, int frames) {
+      int n = (mode == Mode.ROLLING_MEAN) ? Math.max(1, Math.min(MAX_FRAMES, frames)) : 1;
+      if (mode != this.mode || n != this.frames) {
+         this.mode = mode;
+         this.frames = n;
+         corrected = null; // Resize the window on the next frame
+         clear();
+      }
+   }
+
+   public Mode getMode() {
+      return mode;
+   }
+
+   // Forgets the background
+   public void clear() {
+      learned = 0;
+      oldest = 0;
+   }
+
+   public boolean hasBackground() {
+      return mode != Mode.NONE && learned > 0;
+   }
+
+   // Replaces the background with the frame, in REFERENCE mode, or adds it to the
+   // window of frames, in ROLLING_MEAN mode, dropping the oldest frame when full
+   public void learn(Frame frame) {
+      if (mode == Mode.NONE) {
+         return;
+      }
+      if (!frame.sameFormat(corrected)) {
+         resize(frame);
+      }
+      if (mode == Mode.REFERENCE) {
+         learned = 0;
+         oldest = 0;
+      }
+      int size = frame.getWidth() * frame.getHeight();
+      boolean full = learned == frames;
+      int base = (full ? oldest : learned) * size;
+      if (!full) {
+         learned++;
+      } else {
+         oldest = (oldest + 1) % frames;
+      }
+      long total = 0;
+      for (int i = 0; i < size; i++) {
+         int value = frame.pixel(i);
+         int s = sum[i] + value;
+         if (full) {
+            s -= window.pixel(base + i);
+         } else if (learned == 1) {
+            s = value;
+         }
+         sum[i] = s;
+         background[i] = s / learned;
+         total += background[i];
+      }
+      mean = (int) ((total + size / 2) / Math.max(1, size));
+      frame.copyPixels(0, window, base, size);
+   }
+
+   // Threshold for the frames corrected by apply, from the threshold of raw
+   // frames. A raw threshold is the darkness below white, the corrected one is
+   // the darkness below the background, so it is lowered by how far the mean
+   // background is below white. On an even background the same pixels pass.
+   public int relativeThreshold(int threshold, int max) {
+      return Math.max(1, threshold - (max - mean));
+   }
+
+   // Frame with the background subtracted, or the frame itself without a
+   // background. The returned frame is overwritten by the next call.
+   public Frame apply(Frame frame) {
+      if (!hasBackground() || !frame.sameFormat(corrected)) {
+         return frame;
+      }
+      int size = frame.getWidth() * frame.getHeight();
+      int max = frame.getMaxValue();
+      byte[] img = frame.getImage();
+      if (frame.getDepth() == 1) {
+         byte[] out = corrected.getImage();
+         for (int i = 0; i < size; i++) {
+            int value = (img[i] & 0xff) - background[i] + max;
+            out[i] = (byte) Math.max(0, Math.min(max, value));
+         }
+      } else if (frame.getShortImage() != null) {
+         short[] in = frame.getShortImage();
+         short[] out = corrected.getShortImage();
+         for (int i = 0; i < size; i++) {
+            int value = (in[i] & 0xffff) - background[i] + max;
+            out[i] = (short) Math.max(0, Math.min(max, value));
+         }
+      } else {
+         for (int i = 0; i < size; i++) {
+            int value = frame.pixel(i) - background[i] + max;
+            corrected.setPixel(i, Math.max(0, Math.min(max, value)));
+         }
+      }
+      return corrected.withNumber(frame.getNumber());
+   }
+
+   // Copy of the background, as stored in Settings.background, or null
+   public Frame getBackground() {
+      if (!hasBackground()) {
+         return null;
+      }
+      Frame image = corrected.allocate(corrected.getWidth(), corrected.getHeight());
+      for (int i = 0; i < background.length; i++) {
+         image.setPixel(i, background[i]);
+      }
+      return image;
+   }
+
+   private void resize(Frame frame) {
+      int size = frame.getWidth() * frame.getHeight();
+      background = new int[size];
+      sum = new int[size];
+      window = frame.allocate(frame.getWidth(), frame.getHeight() * frames);
+      corrected = frame.allocate(frame.getWidth(), frame.getHeight());
+      clear();
+   }
+}
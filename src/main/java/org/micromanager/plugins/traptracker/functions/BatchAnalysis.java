@@ -0,0 +1,139 @@
+package org.micromanager.plugins.traptracker.functions;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Re-analyses recorded frames, from a directory of images or a TIFF stack, and
+// writes the particle count of every frame to a CSV file. Frames are read one at
+// a time and analysed in parallel, one FrameAnalyzer per thread. At most two
+// frames per thread are in memory, so the size of the recording does not matter,
+// and their buffers are recycled through a FramePool.
+//
+//    java -cp TrapTracker.jar org.micromanager.plugins.traptracker.functions.BatchAnalysis
+//          <directory or stack> <output.csv> [sigma threshold minSize [threads]]
+//
+// Without a threshold the threshold of every frame is 85% of its white level.
+public class BatchAnalysis {
+
+   private static final double DEFAULT_THRESHOLD_FRACTION = 0.85;
+
+   private final AnalysisParameters parameters;
+   private final int threads;
+   private final AnalysisLog log;
+   private double thresholdFraction = 0;
+
+   public BatchAnalysis(AnalysisParameters parameters, int threads, AnalysisLog log) {
+      this.parameters = parameters.copy();
+      this.threads = Math.max(1, threads);
+      this.log = log;
+   }
+
+   // Takes the threshold of every frame as a fraction of its white level, as
+   // DeviceControl does, so frames of any bit depth get the same cutoff. 0 keeps
+   // the fixed threshold of the parameters.
+   public void setThresholdFraction(double fraction) {
+      thresholdFraction = fraction;
+   }
+
+   // Analyses all frames of the source in order, returns the number of frames
+   public long run(FrameSource source, File csv) throws IOException, InterruptedException {
+      ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+         Thread thread = new Thread(r, "TrapTracker batch analysis");
+         thread.setDaemon(true);
+         return thread;
+      });
+      ThreadLocal<FrameAnalyzer> analyzers = ThreadLocal.withInitial(() -> {
+         FrameAnalyzer analyzer = new FrameAnalyzer();
+         analyzer.setLog(log);
+         return analyzer;
+      });
+      ThreadLocal<AnalysisParameters> frameParameters = ThreadLocal.withInitial(parameters::copy);
+      // Results are written in frame order, waiting for the oldest frame when the
+      // maximum number of frames is in flight
+      ArrayDeque<Future<AnalysisResult>> pending = new ArrayDeque<>();
+      int maxPending = 2 * threads;
+      // Frames are read into the buffers of the frames already analysed
+      FramePool buffers = new FramePool(maxPending + 1);
+      source.setPool(buffers);
+      long frames = 0;
+      long start = System.nanoTime();
+      try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(csv.toPath(),
+            StandardCharsets.UTF_8))) {
+         out.println("frame,count,analysis_ms");
+         Frame frame;
+         while ((frame = source.next()) != null) {
+            Frame next = frame;
+            pending.add(pool.submit(() -> {
+               try {
+                  AnalysisParameters parametersOfFrame = parameters;
+                  if (thresholdFraction > 0) {
+                     parametersOfFrame = frameParameters.get();
+                     parametersOfFrame.threshold = (int) (next.getMaxValue() * thresholdFraction);
+                  }
+                  return analyzers.get().analyze(next, parametersOfFrame);
+               } finally {
+                  buffers.release(next);
+               }
+            }));
+            if (pending.size() >= maxPending) {
+               writeResult(out, pending.remove());
+            }
+            frames++;
+         }
+         while (!pending.isEmpty()) {
+            writeResult(out, pending.remove());
+         }
+      } finally {
+         pool.shutdownNow();
+      }
+      String fraction = (thresholdFraction > 0) ? String.format(Locale.ROOT,
+            ", threshold per frame %.0f%% of white", 100 * thresholdFraction) : "";
+      log.logMessage(String.format(Locale.ROOT, "Analysed %d frames in %.1f s (%s%s)",
+            frames, (System.nanoTime() - start) / 1e9, parameters, fraction));
+      return frames;
+   }
+
+   private static void writeResult(PrintWriter out, Future<AnalysisResult> future)
+         throws IOException, InterruptedException {
+      AnalysisResult result;
+      try {
+         result = future.get();
+      } catch (ExecutionException e) {
+         throw new IOException("Analysis failed", e.getCause());
+      }
+      out.printf(Locale.ROOT, "%d,%d,%.3f%n", result.getFrameNumber(), result.getCount(),
+            result.getTotalNanos() / 1e6);
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (args.length != 2 && args.length != 5 && args.length != 6) {
+         System.err.println("Usage: BatchAnalysis <directory or stack> <output.csv>"
+               + " [sigma threshold minSize [threads]]");
+         System.exit(1);
+      }
+      AnalysisParameters parameters = new AnalysisParameters();
+      if (args.length >= 5) {
+         parameters.sigma = Integer.parseInt(args[2]);
+         parameters.threshold = Integer.parseInt(args[3]);
+         parameters.minSize = Integer.parseInt(args[4]);
+      }
+      int threads = (args.length == 6)
+            ? Integer.parseInt(args[5]) : Runtime.getRuntime().availableProcessors();
+      BatchAnalysis batch = new BatchAnalysis(parameters, threads, AnalysisLog.SYSTEM_OUT);
+      if (args.length == 2) {
+         batch.setThresholdFraction(DEFAULT_THRESHOLD_FRACTION);
+      }
+      try (FrameSource source = FrameSource.open(new File(args[0]))) {
+         batch.run(source, new File(args[1]));
+      }
+   }
+}
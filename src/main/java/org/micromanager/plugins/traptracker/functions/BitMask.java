@@ -0,0 +1,134 @@
+package org.micromanager.plugins.traptracker.functions;
+
+// Binary image with one bit per pixel. Every row starts on a new long, pixel x
+// of a row is bit (x % 64) of word (x / 64). Bits past the width are always 0.
+// A 2048 x 2048 frame takes 512 kB, against 16 MB for the int stage buffers.
+public class BitMask {
+
+   private long[] words = new long[0];
+   private long[] outside = new long[0];
+   private int width;
+   private int height;
+   private int wordsPerRow;
+
+   // Sizes the mask for a frame. The contents are undefined until written.
+   public void resize(int width, int height) {
+      this.width = width;
+      this.height = height;
+      wordsPerRow = (width + 63) >>> 6;
+      int size = wordsPerRow * height;
+      if (words.length != size) {
+         words = new long[size];
+         outside = new long[size];
+      }
+   }
+
+   public int getWidth() {
+      return width;
+   }
+
+   public int getHeight() {
+      return height;
+   }
+
+   public int getWordsPerRow() {
+      return wordsPerRow;
+   }
+
+   public long[] getWords() {
+      return words;
+   }
+
+   public boolean get(int x, int y) {
+      return (words[y * wordsPerRow + (x >>> 6)] & (1L << x)) != 0;
+   }
+
+   // Valid bits of word w of a row
+   private long validBits(int w) {
+      int remaining = width - (w << 6);
+      return remaining >= 64 ? -1L : (1L << remaining) - 1;
+   }
+
+   // Fills every background region that is not connected to the image border.
+   // The outside region is grown from the border bits with whole words at a time:
+   // vertically by or-ing in the row above or below, and horizontally along runs
+   // of background with the carry of an addition. Down and up sweeps are
+   // repeated until nothing changes, usually only a few times.
+   public void fillHoles() {
+      if (width == 0 || height == 0) {
+         return;
+      }
+      // Seed with the background on the border
+      for (int y = 0; y < height; y++) {
+         int base = y * wordsPerRow;
+         boolean edgeRow = (y == 0 || y == height - 1);
+         for (int w = 0; w < wordsPerRow; w++) {
+            long seed = 0;
+            if (edgeRow) {
+               seed = -1L;
+            } else {
+               if (w == 0) {
+                  seed |= 1L;
+               }
+               if (w == wordsPerRow - 1) {
+                  seed |= 1L << ((width - 1) & 63);
+               }
+            }
+            outside[base + w] = seed & ~words[base + w] & validBits(w);
+         }
+         growRow(y, -1);
+      }
+
+      boolean changed = true;
+      while (changed) {
+         changed = false;
+         for (int y = 1; y < height; y++) {
+            changed |= growRow(y, y - 1);
+         }
+         for (int y = height - 2; y >= 0; y--) {
+            changed |= growRow(y, y + 1);
+         }
+      }
+
+      for (int i = 0; i < words.length; i++) {
+         words[i] |= ~outside[i] & validBits(i % wordsPerRow);
+      }
+   }
+
+   // Grows the outside region of row y from row neighbour (or not, if < 0), and
+   // along the background runs of the row. Returns true if the row changed.
+   private boolean growRow(int y, int neighbour) {
+      int base = y * wordsPerRow;
+      boolean changed = false;
+      long carry = 0;
+      // Towards higher x
+      for (int w = 0; w < wordsPerRow; w++) {
+         long background = ~words[base + w] & validBits(w);
+         long seed = outside[base + w] | carry;
+         if (neighbour >= 0) {
+            seed |= outside[neighbour * wordsPerRow + w];
+         }
+         long filled = fillRun(seed & background, background);
+         changed |= filled != outside[base + w];
+         outside[base + w] = filled;
+         carry = filled >>> 63;
+      }
+      // Towards lower x, on bit-reversed words
+      carry = 0;
+      for (int w = wordsPerRow - 1; w >= 0; w--) {
+         long background = Long.reverse(~words[base + w] & validBits(w));
+         long seed = Long.reverse(outside[base + w]) | carry;
+         long filled = fillRun(seed & background, background);
+         outside[base + w] = Long.reverse(filled);
+         carry = filled >>> 63;
+      }
+      return changed;
+   }
+
+   // Sets every bit of runs that contain a seed, from the seed towards bit 63.
+   // Adding a seed to its run clears the run above it and carries out of the run,
+   // the xor with the run then gives the filled bits.
+   private static long fillRun(long seed, long runs) {
+      return (((seed + runs) ^ runs) & runs) | seed;
+   }
+}
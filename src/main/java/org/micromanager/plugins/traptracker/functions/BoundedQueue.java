@@ -0,0 +1,85 @@
+package org.micromanager.plugins.traptracker.functions;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Bounded queue for any number of producer and consumer threads, without locks
+// (D. Vyukov's bounded MPMC queue). Every slot of the ring carries a sequence
+// number that tells whether it is free for the producer of position pos
+// (sequence == pos) or holds the item for the consumer (sequence == pos + 1).
+// offer and poll never block, a full or empty queue returns straight away.
+final class BoundedQueue<T> {
+
+   private final Object[] items;
+   private final AtomicLongArray sequence;
+   private final int mask;
+   private final AtomicLong head = new AtomicLong();
+   private final AtomicLong tail = new AtomicLong();
+
+   // The capacity is rounded up to a power of 2, at least 2
+   BoundedQueue(int capacity) {
+      int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+      items = new Object[size];
+      sequence = new AtomicLongArray(size);
+      for (int i = 0; i < size; i++) {
+         sequence.set(i, i);
+      }
+      mask = size - 1;
+   }
+
+   // Returns false when the queue is full
+   boolean offer(T item) {
+      long pos = tail.get();
+      while (true) {
+         int index = (int) pos & mask;
+         long diff = sequence.get(index) - pos;
+         if (diff == 0) {
+            if (tail.compareAndSet(pos, pos + 1)) {
+               items[index] = item;
+               // Publishes the item to the consumer that reads this sequence
+               sequence.set(index, pos + 1);
+               return true;
+            }
+            pos = tail.get();
+         } else if (diff < 0) {
+            return false;
+         } else {
+            pos = tail.get();
+         }
+      }
+   }
+
+   // Returns null when the queue is empty
+   @SuppressWarnings("unchecked")
+   T poll() {
+      long pos = head.get();
+      while (true) {
+         int index = (int) pos & mask;
+         long diff = sequence.get(index) - (pos + 1);
+         if (diff == 0) {
+            if (head.compareAndSet(pos, pos + 1)) {
+               T item = (T) items[index];
+               items[index] = null;
+               // Frees the slot for the producer one lap later
+               sequence.set(index, pos + mask + 1);
+               return item;
+            }
+            pos = head.get();
+         } else if (diff < 0) {
+            return null;
+         } else {
+            pos = head.get();
+         }
+      }
+   }
+
+   // Number of items, only a snapshot while other threads use the queue
+   int size() {
+      long size = tail.get() - head.get();
+      return (int) Math.max(0, Math.min(size, items.length));
+   }
+
+   int capacity() {
+      return items.length;
+   }
+}
@@ -0,0 +1,246 @@
+package org.micromanager.plugins.traptracker.functions;
+
+// Two-pass scan-line connected-component labeling (4-connected) using union-find
+// on pixel indices. Roots are always linked to the smaller index, so the root of
+// a component is its first pixel in scan order. This allows the second pass to
+// flatten the forest into consecutive labels in place, while accumulating the
+// area, perimeter and bounding box of every component in the same sweep.
+public class ComponentLabeler {
+
+   private int[] parent = new int[0];
+   private int width;
+   private int height;
+   private final ComponentStats stats = new ComponentStats();
+
+   // Labels all pixels with a value > 0 and returns the number of components.
+   // The input is not modified.
+   public int label(int[] pixels, int width, int height) {
+      prepare(width, height);
+      linkRows(pixels, 0, height, false);
+      resolve();
+      return stats.count;
+   }
+
+   // Labels all non-zero pixels of a binary mask
+   public int label(byte[] mask, int width, int height) {
+      prepare(width, height);
+      linkRows(mask, 0, height, false);
+      resolve();
+      return stats.count;
+   }
+
+   // Fills the holes of a binary mask: every background component that does not
+   // touch the image border is set to 1.
+   public void fillHoles(byte[] mask, int width, int height) {
+      prepare(width, height);
+      linkRows(mask, 0, height, true);
+      flattenRows(0, height);
+      markBorderComponents();
+      fillEnclosedRows(mask, 0, height);
+   }
+
+   void prepare(int width, int height) {
+      this.width = width;
+      this.height = height;
+      int size = width * height;
+      if (parent.length != size) {
+         parent = new int[size];
+      }
+   }
+
+   // First pass over rows [firstRow, lastRow). Pixels with a value > 0 are linked,
+   // or pixels equal to 0 when labeling the background. Rows above firstRow are
+   // not looked at, so disjoint strips can be linked concurrently, and joined
+   // afterwards with mergeSeam.
+   void linkRows(int[] pixels, int firstRow, int lastRow, boolean background) {
+      for (int y = firstRow; y < lastRow; y++) {
+         int row = y * width;
+         for (int x = 0; x < width; x++) {
+            int i = row + x;
+            if (background ? pixels[i] == 0 : pixels[i] > 0) {
+               linkPixel(i, x, y, firstRow);
+            } else {
+               parent[i] = -1;
+            }
+         }
+      }
+   }
+
+   // Same as above for a binary mask, where any non-zero byte is foreground
+   void linkRows(byte[] mask, int firstRow, int lastRow, boolean background) {
+      for (int y = firstRow; y < lastRow; y++) {
+         int row = y * width;
+         for (int x = 0; x < width; x++) {
+            int i = row + x;
+            if ((mask[i] == 0) == background) {
+               linkPixel(i, x, y, firstRow);
+            } else {
+               parent[i] = -1;
+            }
+         }
+      }
+   }
+
+   // Adds foreground pixel i to the forest, merging it with its left and top
+   // neighbours.
+   private void linkPixel(int i, int x, int y, int firstRow) {
+      int left = (x > 0) ? parent[i - 1] : -1;
+      int top = (y > firstRow) ? parent[i - width] : -1;
+      if (left < 0 && top < 0) {
+         parent[i] = i;
+      } else if (top < 0) {
+         parent[i] = left;
+      } else if (left < 0) {
+         parent[i] = top;
+      } else {
+         parent[i] = union(i - 1, i - width);
+      }
+   }
+
+   // Joins the components of row y with those of row y - 1
+   void mergeSeam(int y) {
+      int row = y * width;
+      for (int i = row; i < row + width; i++) {
+         if (parent[i] >= 0 && parent[i - width] >= 0) {
+            union(i, i - width);
+         }
+      }
+   }
+
+   // Points every pixel in rows [firstRow, lastRow) directly at its root. Only
+   // valid once all unions are done, the forest is then read-only apart from
+   // these writes, which makes it safe to flatten disjoint strips concurrently.
+   void flattenRows(int firstRow, int lastRow) {
+      for (int i = firstRow * width; i < lastRow * width; i++) {
+         int root = parent[i];
+         if (root < 0) {
+            continue;
+         }
+         while (parent[root] != root) {
+            root = parent[root];
+         }
+         parent[i] = root;
+      }
+   }
+
+   int find(int i) {
+      while (parent[i] != i) {
+         parent[i] = parent[parent[i]];
+         i = parent[i];
+      }
+      return i;
+   }
+
+   // Merges the trees containing a and b, and returns the resulting root
+   int union(int a, int b) {
+      int rootA = find(a);
+      int rootB = find(b);
+      if (rootA < rootB) {
+         parent[rootB] = rootA;
+         return rootA;
+      }
+      parent[rootA] = rootB;
+      return rootB;
+   }
+
+   // Marks the background components touching the image border as outside. The
+   // forest must be flattened; an outside root is set to root + size, which no
+   // pixel index can reach.
+   void markBorderComponents() {
+      for (int x = 0; x < width; x++) {
+         markOutside(x);
+         markOutside((height - 1) * width + x);
+      }
+      for (int y = 0; y < height; y++) {
+         markOutside(y * width);
+         markOutside(y * width + width - 1);
+      }
+   }
+
+   private void markOutside(int i) {
+      int root = parent[i];
+      if (root >= 0 && root < parent.length && parent[root] == root) {
+         parent[root] = root + parent.length;
+      }
+   }
+
+   // Sets the background pixels in rows [firstRow, lastRow) that are not
+   // connected to the border to 255. Disjoint strips can be filled concurrently.
+   void fillEnclosedRows(int[] pixels, int firstRow, int lastRow) {
+      int size = parent.length;
+      for (int i = firstRow * width; i < lastRow * width; i++) {
+         int root = parent[i];
+         if (root >= 0 && root < size && parent[root] < size) {
+            pixels[i] = 255;
+         }
+      }
+   }
+
+   void fillEnclosedRows(byte[] mask, int firstRow, int lastRow) {
+      int size = parent.length;
+      for (int i = firstRow * width; i < lastRow * width; i++) {
+         int root = parent[i];
+         if (root >= 0 && root < size && parent[root] < size) {
+            mask[i] = 1;
+         }
+      }
+   }
+
+   // Replaces every parent pointer with a consecutive component label, and
+   // gathers the statistics of each component.
+   void resolve() {
+      stats.clear();
+      for (int y = 0; y < height; y++) {
+         int row = y * width;
+         for (int x = 0; x < width; x++) {
+            int i = row + x;
+            int p = parent[i];
+            if (p < 0) {
+               continue;
+            }
+            int label;
+            if (p == i) {
+               label = stats.add(x, y);
+            } else {
+               // p < i, so it already holds its final label
+               label = parent[p];
+            }
+            parent[i] = label;
+
+            stats.area[label]++;
+            if (x < stats.minX[label]) {
+               stats.minX[label] = x;
+            }
+            if (x > stats.maxX[label]) {
+               stats.maxX[label] = x;
+            }
+            stats.maxY[label] = y;
+
+            // Edges with the background or the image border add to the perimeter
+            int edges = 0;
+            if (x == 0 || parent[i - 1] < 0) {
+               edges++;
+            }
+            if (x == width - 1 || parent[i + 1] < 0) {
+               edges++;
+            }
+            if (y == 0 || parent[i - width] < 0) {
+               edges++;
+            }
+            if (y == height - 1 || parent[i + width] < 0) {
+               edges++;
+            }
+            stats.perimeter[label] += edges;
+         }
+      }
+   }
+
+   public ComponentStats getStats() {
+      return stats;
+   }
+
+   // Label image of the last call to label. Background pixels are -1.
+   public int[] getLabels() {
+      return parent;
+   }
+}
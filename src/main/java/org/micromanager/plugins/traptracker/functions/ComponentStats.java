@@ -0,0 +1,69 @@
+package org.micromanager.plugins.traptracker.functions;
+
+import java.util.Arrays;
+
+// Area, perimeter and bounding box of every component found by a labeler. The
+// arrays only grow, so relabeling frames of similar content does not allocate.
+public class ComponentStats {
+
+   int count;
+   int[] area = new int[0];
+   int[] perimeter = new int[0];
+   int[] minX = new int[0];
+   int[] maxX = new int[0];
+   int[] minY = new int[0];
+   int[] maxY = new int[0];
+
+   void clear() {
+      count = 0;
+   }
+
+   // Starts a new, empty component whose first pixel is (x, y)
+   int add(int x, int y) {
+      int label = count++;
+      if (label == area.length) {
+         int capacity = Math.max(64, 2 * area.length);
+         area = Arrays.copyOf(area, capacity);
+         perimeter = Arrays.copyOf(perimeter, capacity);
+         minX = Arrays.copyOf(minX, capacity);
+         maxX = Arrays.copyOf(maxX, capacity);
+         minY = Arrays.copyOf(minY, capacity);
+         maxY = Arrays.copyOf(maxY, capacity);
+      }
+      area[label] = 0;
+      perimeter[label] = 0;
+      minX[label] = x;
+      maxX[label] = x;
+      minY[label] = y;
+      maxY[label] = y;
+      return label;
+   }
+
+   public int getCount() {
+      return count;
+   }
+
+   public int getArea(int label) {
+      return area[label];
+   }
+
+   public int getPerimeter(int label) {
+      return perimeter[label];
+   }
+
+   public int getMinX(int label) {
+      return minX[label];
+   }
+
+   public int getMaxX(int label) {
+      return maxX[label];
+   }
+
+   public int getMinY(int label) {
+      return minY[label];
+   }
+
+   public int getMaxY(int label) {
+      return maxY[label];
+   }
+}
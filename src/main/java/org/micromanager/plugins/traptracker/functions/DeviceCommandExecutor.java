@@ -0,0 +1,119 @@
+package org.micromanager.plugins.traptracker.functions;
+
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import mmcorej.CMMCore;
+
+// Sends the commands for the pumps and valves from a device thread of its own,
+// so the automation does not block on the core. Every command returns a future
+// that completes when the device got there: a pressure pump reads its setpoint,
+// a volumetric pump finished dispensing. Instead of sleeping a fixed time the
+// device thread polls the devices, commands submitted in between run before the
+// next poll, so a stopFlow is never queued behind a slow pump.
+public class DeviceCommandExecutor {
+
+   @FunctionalInterface
+   public interface Command {
+      void run() throws Exception;
+   }
+
+   @FunctionalInterface
+   public interface Condition {
+      boolean reached() throws Exception;
+   }
+
+   private static final long POLL_INTERVAL = TimeUnit.MILLISECONDS.toNanos(20);
+
+   private final CMMCore core_;
+   private final ScheduledExecutorService thread_;
+
+   public DeviceCommandExecutor(CMMCore core) {
+      core_ = core;
+      thread_ = Executors.newSingleThreadScheduledExecutor(runnable -> {
+         Thread thread = new Thread(runnable, "TrapTracker devices");
+         thread.setDaemon(true);
+         return thread;
+      });
+   }
+
+   // Runs the command on the device thread, commands run in the order submitted
+   public CompletableFuture<Void> submit(Command command) {
+      CompletableFuture<Void> done = new CompletableFuture<>();
+      thread_.execute(() -> {
+         try {
+            command.run();
+            done.complete(null);
+         } catch (Exception e) {
+            done.completeExceptionally(e);
+         }
+      });
+      return done;
+   }
+
+   // Completes once the condition holds, fails with a TimeoutException with the
+   // message when it does not within timeout nanoseconds
+   public CompletableFuture<Void> when(Condition condition, long timeout, String message) {
+      CompletableFuture<Void> done = new CompletableFuture<>();
+      long deadline = System.nanoTime() + timeout;
+      thread_.execute(() -> check(condition, deadline, message, done));
+      return done;
+   }
+
+   // Sets the pressure of a pressure pump, completes when the pump is no longer
+   // busy and reads the pressure within tolerance kPa
+   public CompletableFuture<Void> setPressure(String pump, double kPa, double tolerance,
+         long timeout) {
+      String message = String.format(Locale.ROOT, "%s did not reach %.2f kPa in %.1f s",
+            pump, kPa, timeout / 1e9);
+      return submit(() -> core_.setPumpPressureKPa(pump, kPa)).thenCompose(set -> when(
+            () -> !core_.deviceBusy(pump)
+                  && Math.abs(core_.getPumpPressureKPa(pump) - kPa) <= tolerance,
+            timeout, message));
+   }
+
+   // Completes when the device is no longer busy, e.g. a volumetric pump that
+   // dispensed its volume
+   public CompletableFuture<Void> whenIdle(String device, long timeout) {
+      return when(() -> !core_.deviceBusy(device), timeout, String.format(Locale.ROOT,
+            "%s still busy after %.1f s", device, timeout / 1e9));
+   }
+
+   // Completes when the circular buffer of the running live/sequence acquisition
+   // holds an image, which the FrameGrabber needs
+   public CompletableFuture<Void> whenImage(long timeout) {
+      return when(this::hasImage, timeout, String.format(Locale.ROOT,
+            "No image in the circular buffer after %.1f s", timeout / 1e9));
+   }
+
+   private boolean hasImage() throws Exception {
+      if (!core_.isSequenceRunning()) {
+         return false;
+      }
+      try {
+         core_.getLastImage();
+         return true;
+      } catch (Exception e) {
+         return false; // The buffer is still empty
+      }
+   }
+
+   private void check(Condition condition, long deadline, String message,
+         CompletableFuture<Void> done) {
+      try {
+         if (condition.reached()) {
+            done.complete(null);
+         } else if (System.nanoTime() - deadline >= 0) {
+            done.completeExceptionally(new TimeoutException(message));
+         } else {
+            thread_.schedule(() -> check(condition, deadline, message, done),
+                  POLL_INTERVAL, TimeUnit.NANOSECONDS);
+         }
+      } catch (Exception e) {
+         done.completeExceptionally(e);
+      }
+   }
+}
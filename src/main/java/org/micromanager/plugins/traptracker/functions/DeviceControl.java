@@ -2,12 +2,15 @@ package org.micromanager.plugins.traptracker.functions;
 
 import static java.lang.Math.abs;
 
-import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import javax.imageio.ImageIO;
 import mmcorej.DeviceType;
 import org.micromanager.PositionList;
 import org.micromanager.PositionListManager;
@@ -28,16 +31,31 @@ public class DeviceControl implements Runnable {
    private final SnapLiveManager snapLiveManager;
    private PositionList positionList;
    private final ImageAnalysis imgAnalysis;
+   private final FrameGrabber grabber_;
+   private final DeviceCommandExecutor devices_;
+   private final AnalysisRateController rateController_ = new AnalysisRateController();
+   private final FillRateEstimator fillEstimator_ = new FillRateEstimator();
 
    private final SequenceSettings.Builder builder;
    private final AtomicBoolean isClosed_ = new AtomicBoolean(false);
    private final AtomicBoolean isFlowing_ = new AtomicBoolean(false);
 
    private Thread automationThread;
+   private CompletableFuture<Void> live_ = CompletableFuture.completedFuture(null);
    public AtomicBoolean running = new AtomicBoolean(false);
    private Datastore datastore;
 
-   private final int threshold = (int) (255 * 0.85);
+   private AnalysisPipeline pipeline_;
+   private volatile boolean triggered_ = false;
+   private volatile long triggerFrame_;
+   private volatile boolean stageImagesSaved_ = false;
+   private volatile long lastTriggerLatency_ = 0;
+   private volatile long maxTriggerLatency_ = 0;
+   private String trapMapFile_;
+
+   private static final long STOP_CHECK = TimeUnit.MILLISECONDS.toNanos(50);
+
+   private final double threshold = 0.85; // Fraction of the range of the camera
    private final int sigma = 3;
 
 
@@ -48,6 +66,8 @@ public class DeviceControl implements Runnable {
       snapLiveManager = studio.getSnapLiveManager();
       acquisitionManager = studio.getAcquisitionManager();
       imgAnalysis = new ImageAnalysis(studio_);
+      grabber_ = new FrameGrabber(studio_.core());
+      devices_ = new DeviceCommandExecutor(studio_.core());
 
       builder = new SequenceSettings.Builder();
       builder.usePositionList(true);
@@ -55,48 +75,48 @@ public class DeviceControl implements Runnable {
       builder.numFrames(1);
    }
 
-   public void openTrap() throws Exception {
+   // The trap and flow commands return straight away, the futures complete when
+   // the pumps reached their setpoints, or fail with the error of the command
+   public CompletableFuture<Void> openTrap() {
       // Only open trap if it is closed
-      if (!isClosed()) {
-         return;
+      if (!isClosed_.compareAndSet(true, false)) {
+         return CompletableFuture.completedFuture(null);
       }
-      try {
-         if (settings_.valveType == DeviceType.PressurePumpDevice) {
-            studio_.core().setPumpPressureKPa(settings_.valveController,
-                  settings_.valveOpenValue);
-         } else if (settings_.valveType == DeviceType.VolumetricPumpDevice) {
+      CompletableFuture<Void> opened;
+      if (settings_.valveType == DeviceType.PressurePumpDevice) {
+         opened = setPressure(settings_.valveController, settings_.valveOpenValue);
+      } else if (settings_.valveType == DeviceType.VolumetricPumpDevice) {
+         opened = devices_.submit(() -> {
             studio_.core().setPumpFlowrate(settings_.valveController, -settings_.valveClosedValue);
             studio_.core().pumpDispenseVolumeUl(settings_.valveController,
                   settings_.valveOpenValue);
-         } else {
-            studio_.core().logMessage("Cannot open trap, as no flow controller is set!");
-         }
-         isClosed_.set(false);
-      } catch (Exception e) {
-         throw new Exception("Error occurred while opening the trap", e);
+         }).thenCompose(set -> devices_.whenIdle(settings_.valveController, deviceTimeout()));
+      } else {
+         studio_.core().logMessage("Cannot open trap, as no flow controller is set!");
+         opened = CompletableFuture.completedFuture(null);
       }
+      return command(opened, isClosed_, true, "Error occurred while opening the trap");
    }
 
-   public void closeTrap() throws Exception {
+   public CompletableFuture<Void> closeTrap() {
       // Only close trap if it is open
-      if (isClosed()) {
-         return;
+      if (!isClosed_.compareAndSet(false, true)) {
+         return CompletableFuture.completedFuture(null);
       }
-      try {
-         if (settings_.valveType == DeviceType.PressurePumpDevice) {
-            studio_.core().setPumpPressureKPa(settings_.valveController,
-                  settings_.valveClosedValue);
-         } else if (settings_.valveType == DeviceType.VolumetricPumpDevice) {
+      CompletableFuture<Void> closed;
+      if (settings_.valveType == DeviceType.PressurePumpDevice) {
+         closed = setPressure(settings_.valveController, settings_.valveClosedValue);
+      } else if (settings_.valveType == DeviceType.VolumetricPumpDevice) {
+         closed = devices_.submit(() -> {
             studio_.core().setPumpFlowrate(settings_.valveController, settings_.valveClosedValue);
             studio_.core().pumpDispenseVolumeUl(settings_.valveController,
                   settings_.valveOpenValue);
-         } else {
-            studio_.core().logMessage("Cannot close trap, as no flow controller is set!");
-         }
-         isClosed_.set(true);
-      } catch (Exception e) {
-         throw new Exception("Error occurred while closing the trap", e);
+         }).thenCompose(set -> devices_.whenIdle(settings_.valveController, deviceTimeout()));
+      } else {
+         studio_.core().logMessage("Cannot close trap, as no flow controller is set!");
+         closed = CompletableFuture.completedFuture(null);
       }
+      return command(closed, isClosed_, false, "Error occurred while closing the trap");
    }
 
    public boolean isClosed() {
@@ -107,58 +127,92 @@ public class DeviceControl implements Runnable {
       return isFlowing_.get();
    }
 
-   public void startFlow() throws Exception {
+   public CompletableFuture<Void> startFlow() {
       // Only start flow if it is stopped
-      if (isFlowing()) {
-         return;
+      if (!isFlowing_.compareAndSet(false, true)) {
+         return CompletableFuture.completedFuture(null);
       }
-
-      try {
-         if (settings_.flowType == DeviceType.PressurePumpDevice) {
-            studio_.getLogManager().logMessage("Starting flow: setting pressure of "
-                  + settings_.flowController
-                  + " to: "
-                  + settings_.flowActiveValue);
-            studio_.core().setPumpPressureKPa(settings_.flowController,
-                  settings_.flowActiveValue);
-         } else if (settings_.flowType == DeviceType.VolumetricPumpDevice) {
-            studio_.getLogManager().logMessage("Starting flow with flowrate: "
-                  + settings_.flowActiveValue);
+      CompletableFuture<Void> started;
+      if (settings_.flowType == DeviceType.PressurePumpDevice) {
+         studio_.getLogManager().logMessage("Starting flow: setting pressure of "
+               + settings_.flowController
+               + " to: "
+               + settings_.flowActiveValue);
+         started = setPressure(settings_.flowController, settings_.flowActiveValue);
+      } else if (settings_.flowType == DeviceType.VolumetricPumpDevice) {
+         studio_.getLogManager().logMessage("Starting flow with flowrate: "
+               + settings_.flowActiveValue);
+         // Pumps continuously, it stays busy
+         started = devices_.submit(() -> {
             studio_.core().setPumpFlowrate(settings_.flowController,
                   settings_.flowActiveValue);
             studio_.core().pumpStart(settings_.flowController);
-         } else {
-            studio_.core().logMessage("Cannot start flow, as no flow controller is set!");
-         }
-         isFlowing_.set(true);
-      } catch (Exception e) {
-         throw new Exception("Error occurred while starting the flow", e);
+         });
+      } else {
+         studio_.core().logMessage("Cannot start flow, as no flow controller is set!");
+         started = CompletableFuture.completedFuture(null);
       }
+      return command(started, isFlowing_, false, "Error occurred while starting the flow");
    }
 
-   public void stopFlow() throws Exception {
+   public CompletableFuture<Void> stopFlow() {
       // Only stop flow if it is flowing
-      if (!isFlowing()) {
-         return;
+      if (!isFlowing_.compareAndSet(true, false)) {
+         return CompletableFuture.completedFuture(null);
+      }
+      CompletableFuture<Void> stopped;
+      if (settings_.flowType == DeviceType.PressurePumpDevice) {
+         studio_.getLogManager().logMessage("Stopping flow: setting pressure of "
+               + settings_.flowController
+               + " to: "
+               + settings_.flowInactiveValue);
+         stopped = setPressure(settings_.flowController, settings_.flowInactiveValue);
+      } else if (settings_.flowType == DeviceType.VolumetricPumpDevice) {
+         studio_.getLogManager().logMessage("Stopping flow");
+         stopped = devices_.submit(() -> studio_.core().volumetricPumpStop(
+               settings_.flowController))
+               .thenCompose(set -> devices_.whenIdle(settings_.flowController, deviceTimeout()));
+      } else {
+         studio_.core().logMessage("Cannot start flow, as no flow controller is set!");
+         stopped = CompletableFuture.completedFuture(null);
       }
+      return command(stopped, isFlowing_, true, "Error occurred while stopping the flow");
+   }
 
-      try {
-         if (settings_.flowType == DeviceType.PressurePumpDevice) {
-            studio_.getLogManager().logMessage("Stopping flow: setting pressure of "
-                  + settings_.flowController
-                  + " to: "
-                  + settings_.flowInactiveValue);
-            studio_.core().setPumpPressureKPa(settings_.flowController,
-                  settings_.flowInactiveValue);
-         } else if (settings_.flowType == DeviceType.VolumetricPumpDevice) {
-            studio_.getLogManager().logMessage("Stopping flow");
-            studio_.core().volumetricPumpStop(settings_.flowController);
+   private CompletableFuture<Void> setPressure(String pump, double kPa) {
+      return devices_.setPressure(pump, kPa, settings_.pressureTolerance, deviceTimeout());
+   }
+
+   private long deviceTimeout() {
+      return (long) (settings_.deviceTimeout * 1e9);
+   }
+
+   // Fails with an exception with the message when the command fails, and sets
+   // the state back to what it was before
+   private static CompletableFuture<Void> command(CompletableFuture<Void> command,
+         AtomicBoolean state, boolean before, String message) {
+      CompletableFuture<Void> done = new CompletableFuture<>();
+      command.whenComplete((result, e) -> {
+         if (e == null) {
+            done.complete(null);
          } else {
-            studio_.core().logMessage("Cannot start flow, as no flow controller is set!");
+            state.set(before);
+            Throwable cause = (e instanceof CompletionException) ? e.getCause() : e;
+            done.completeExceptionally(new Exception(message, cause));
          }
-         isFlowing_.set(false);
-      } catch (Exception e) {
-         throw new Exception("Error occurred while stopping the flow", e);
+      });
+      return done;
+   }
+
+   // Waits for the commands, and throws the exception of one that failed
+   private static void await(CompletableFuture<?>... commands) throws Exception {
+      try {
+         CompletableFuture.allOf(commands).get();
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof Exception) {
+            throw (Exception) e.getCause();
+         }
+         throw e;
       }
    }
 
@@ -170,19 +224,23 @@ public class DeviceControl implements Runnable {
       }
    }
 
-   public void startAutomation() throws InterruptedException {
+   // Returns straight away, the automation thread waits for the circular buffer.
+   // The future fails when the camera delivers no image, the automation stops.
+   public CompletableFuture<Void> startAutomation() {
+      if (running.get()) {
+         return CompletableFuture.completedFuture(null);
+      }
+      live_ = CompletableFuture.completedFuture(null);
       if (!snapLiveManager.isLiveModeOn()) {
          snapLiveManager.setLiveModeOn(true);
          studio_.core().logMessage("Camera was not live, so it was turned on automatically.");
-         TimeUnit.SECONDS.sleep(1); // Wait to fill the circular buffer
-      }
-
-      if (!running.get()) {
-         positionList = positionListManager.getPositionList();
-         settings_.setParameter(Settings.ParameterTypes.isRunning, 1.0);
-         automationThread = new Thread(this);
-         automationThread.start();
+         live_ = devices_.whenImage(deviceTimeout()); // Wait to fill the circular buffer
       }
+      positionList = positionListManager.getPositionList();
+      settings_.setParameter(Settings.ParameterTypes.isRunning, 1.0);
+      automationThread = new Thread(this);
+      automationThread.start();
+      return live_;
    }
 
    public void stopAutomation() {
@@ -199,56 +257,278 @@ public class DeviceControl implements Runnable {
       // debugImageAnalysis();
    }
 
+   // Counts particles in the analysis pipeline and blocks until the number of
+   // trapped particles reaches the trigger value, or the automation is stopped.
+   // This thread is the device stage of the pipeline: it returns straight after
+   // taking the result that crosses the trigger value, so the flow can be
+   // stopped right away, while the pipeline keeps grabbing and analysing.
    private void waitForParticles() throws Exception {
+      joinAnalysis();
       int width = (int) studio_.core().getImageWidth();
       int height = (int) studio_.core().getImageHeight();
-      int depth = (int) studio_.core().getImageBitDepth();
-      do {
-         // Count particles
-         int trapsFilled = imgAnalysis.getParticleCount(
-               (byte[]) studio_.core().getLastImage(),
-               width,
-               height,
-               depth / 8,
-               sigma,
-               threshold,
-               settings_.minSize
-         );
-         settings_.trapsFilled.set(trapsFilled);
-
-         TimeUnit.SECONDS.sleep(1);
-         // Tracking number of trapped particles over time
-      } while (settings_.trapsFilled.get() < settings_.triggerValue && running.get());
+      int bitDepth = (int) studio_.core().getImageBitDepth();
+      imgAnalysis.setLabeling(settings_.labeling, settings_.cutoffCircularity);
+      imgAnalysis.setBlur(settings_.blur);
+      imgAnalysis.setThreads(settings_.analysisThreads);
+      imgAnalysis.setFused(settings_.fusedPretreatment, settings_.bitPackedMask);
+      imgAnalysis.setIncremental(settings_.incrementalAnalysis, settings_.changeTolerance);
+      imgAnalysis.setAutoThreshold(settings_.autoThreshold, settings_.thresholdWindow);
+      configureBackground(width, height);
+      imgAnalysis.configureStageImages(settings_.saveStageImages,
+            settings_.saveIntermediateStages,
+            settings_.stageImagePolicy,
+            settings_.stageImageEveryNth,
+            settings_.stageImageFormat);
+      grabber_.configure(settings_.ingestion, settings_.maxAnalysisRate);
+      boolean adaptive = settings_.adaptiveRate
+            && settings_.ingestion == FrameGrabber.Mode.SEQUENCE;
+      rateController_.configure(grabber_.getMinInterval(),
+            (long) (1e9 / Math.max(settings_.minAnalysisRate, 1e-3)));
+      loadTrapMap();
+      int traps = imgAnalysis.getTrapCount();
+      fillEstimator_.setCapacity((traps > 0) ? traps : settings_.nTrapsValue);
+
+      triggered_ = false;
+      stageImagesSaved_ = false;
+      pipeline_ = new AnalysisPipeline(keepRunning -> {
+         // 8 bit cameras return a byte[], 12 to 16 bit cameras a short[]. The core
+         // copies every image into a new array, which is analysed in place.
+         Object image = grabber_.next(() -> running.get() && keepRunning.getAsBoolean());
+         return (image == null) ? null
+               : Frame.of(image, width, height, bitDepth, grabber_.getFrames());
+      }, analysisWorkers(), settings_.frameQueueSize);
+      pipeline_.start();
+
+      long newestFrame = -1;
+      while (running.get() && pipeline_.isRunning()) {
+         AnalysisPipeline.Analysed analysed = pipeline_.take(STOP_CHECK);
+         if (analysed == null) {
+            continue;
+         }
+         // Count particles, or occupied traps with a trap map. With several
+         // workers results can be out of order, only newer frames are shown.
+         AnalysisResult result = analysed.getResult();
+         int trapsFilled = result.getTrapsFilled();
+         boolean predicted = false;
+         if (result.getFrameNumber() > newestFrame) {
+            newestFrame = result.getFrameNumber();
+            settings_.trapsFilled.set(trapsFilled);
+            fillEstimator_.add(analysed.getGrabNanos(), trapsFilled);
+            predicted = triggerPredicted(analysed.getGrabNanos());
+            if (adaptive) {
+               // Sparse while the traps are far from full, camera rate near the trigger
+               grabber_.setMinInterval(rateController_.update(analysed.getGrabNanos(),
+                     trapsFilled, settings_.triggerValue));
+            }
+         }
+         if (trapsFilled >= settings_.triggerValue || predicted) {
+            if (trapsFilled < settings_.triggerValue) {
+               studio_.getLogManager().logMessage(String.format(
+                     "Stopping the flow at %d traps, %.0f predicted in %.1f s",
+                     trapsFilled, settings_.triggerValue, settings_.pumpLag));
+            }
+            triggerFrame_ = analysed.getGrabNanos();
+            triggered_ = true;
+            return;
+         }
+         if (settings_.logStageTimings) {
+            String message = "Frame " + result.getFrameNumber() + ": " + result
+                  + ", threshold " + result.getThreshold();
+            if (adaptive) {
+               message += String.format(", interval %.0f ms, fill rate %.2f/s",
+                     grabber_.getMinInterval() / 1e6, rateController_.getFillRate());
+            }
+            studio_.getLogManager().logMessage(message);
+         }
+      }
+      joinAnalysis();
    }
 
-   private void debugImageAnalysis() {
-      running.set(true);
-      while (running.get()) {
-         try {
-            BufferedImage img;
-            String path = "C:\\Users\\Lars\\Documents\\GitHub\\"
-                  + "MM_fork\\micro-manager-IDS_peak\\plugins\\ParticleTrapping\\rsc\\img_1.jpg";
-            img = ImageIO.read(new File(path));
-            byte[] bytes = ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
-            int trapsFilled = imgAnalysis.getParticleCount(
-                  bytes,
-                  img.getWidth(),
-                  img.getHeight(),
-                  1,
-                  sigma,
-                  threshold,
-                  settings_.minSize
-            ); // Count particles
-            settings_.trapsFilled.set(trapsFilled);
-            studio_.getLogManager().logMessage("Traps filled: " + trapsFilled);
+   // Whether the count reaches the trigger value within the pump lag from now,
+   // so the flow has to be stopped before it does. Only with a known number of
+   // traps: the constant fill rate fit without it stops too early.
+   private boolean triggerPredicted(long grabNanos) {
+      if (settings_.pumpLag <= 0 || !fillEstimator_.isSaturating()) {
+         return false;
+      }
+      double age = (System.nanoTime() - grabNanos) / 1e9;
+      return fillEstimator_.timeToReach(settings_.triggerValue) - age <= settings_.pumpLag;
+   }
 
-            TimeUnit.SECONDS.sleep(1);
-         } catch (Exception e) {
-            studio_.getLogManager().logError(e, "Something went wrong during image analysis.");
-            running.set(false);
+   // The first worker analyses with imgAnalysis, which saves the stage images,
+   // the others get an analyzer of their own. The stage images of a frame are
+   // held until the worker begins its next frame, so the first worker triggers
+   // them itself when its frame crosses the trigger value.
+   private List<AnalysisPipeline.Worker> analysisWorkers() {
+      List<AnalysisPipeline.Worker> workers = new ArrayList<>();
+      workers.add(frame -> {
+         AnalysisResult result = imgAnalysis.analyze(frame, sigma, threshold(frame),
+               settings_.minSize);
+         if (!stageImagesSaved_ && result.getTrapsFilled() >= settings_.triggerValue) {
+            imgAnalysis.triggerStageImages();
+            stageImagesSaved_ = true;
          }
-         running.set(false);
+         return result;
+      });
+      for (int i = 1; i < settings_.analysisWorkers; i++) {
+         FrameAnalyzer analyzer = imgAnalysis.newAnalyzer();
+         AnalysisParameters parameters = imgAnalysis.getParameters();
+         parameters.sigma = sigma;
+         parameters.minSize = settings_.minSize;
+         workers.add(frame -> {
+            parameters.threshold = threshold(frame);
+            return analyzer.analyze(frame, parameters);
+         });
+      }
+      return workers;
+   }
+
+   // A reference background from the settings is used as is, otherwise the
+   // first frame of the run is taken, when the traps are still empty
+   private void configureBackground(int width, int height) {
+      imgAnalysis.setBackground(settings_.backgroundMode, settings_.backgroundFrames);
+      Frame reference = settings_.background;
+      if (settings_.backgroundMode == BackgroundModel.Mode.REFERENCE && reference != null
+            && reference.getWidth() == width && reference.getHeight() == height) {
+         imgAnalysis.setBackgroundReference(reference);
+      }
+   }
+
+   // Takes the last image as background, it should show the chip with empty traps
+   public void captureBackground() throws Exception {
+      settings_.background = lastFrame();
+      if (settings_.backgroundMode == BackgroundModel.Mode.NONE) {
+         settings_.setParameter(Settings.ParameterTypes.backgroundMode,
+               BackgroundModel.Mode.REFERENCE);
+      }
+   }
+
+   // Loads the trap map of the settings, when it changed since the last run
+   private void loadTrapMap() throws IOException {
+      String file = settings_.trapMapFile;
+      if (file.equals(trapMapFile_)) {
+         return;
       }
+      imgAnalysis.setTrapMap(file.isEmpty() ? null : TrapMap.load(new File(file)));
+      trapMapFile_ = file;
+   }
+
+   // Derives the trap map from the last image, which should show a particle in
+   // every trap, and saves it to the trap map file of the settings
+   public int calibrateTrapMap() throws Exception {
+      if (settings_.trapMapFile.isEmpty()) {
+         throw new IOException("No trap map file set");
+      }
+      Frame frame = lastFrame();
+      AnalysisParameters parameters = new AnalysisParameters(sigma, threshold(frame),
+            settings_.minSize);
+      parameters.cutoffCircularity = settings_.cutoffCircularity;
+      parameters.blur = settings_.blur;
+      TrapMap map = TrapMap.fromCalibration(frame, parameters, settings_.trapMargin);
+      map.save(new File(settings_.trapMapFile));
+      trapMapFile_ = null; // Reload on the next run
+      studio_.getLogManager().logMessage("Found " + map.size() + " traps, saved to "
+            + settings_.trapMapFile);
+      return map.size();
+   }
+
+   private Frame lastFrame() throws Exception {
+      return Frame.of(studio_.core().getLastImage(),
+            (int) studio_.core().getImageWidth(),
+            (int) studio_.core().getImageHeight(),
+            (int) studio_.core().getImageBitDepth(),
+            -1);
+   }
+
+   // Threshold for the white level of the camera, 216 for 8 bit
+   private int threshold(Frame frame) {
+      return threshold(frame.getMaxValue());
+   }
+
+   private int threshold(int maxValue) {
+      return (int) (maxValue * threshold);
+   }
+
+   // Stops the analysis pipeline and waits for its threads, they should not be
+   // reading the circular buffer when live mode is turned off
+   private void joinAnalysis() throws Exception {
+      if (pipeline_ == null) {
+         return;
+      }
+      AnalysisPipeline pipeline = pipeline_;
+      pipeline_ = null;
+      pipeline.stop();
+      pipeline.join();
+      if (triggered_ && !stageImagesSaved_) {
+         // Triggered by another worker or the prediction, the first worker is
+         // stopped now and holds the images of the last frame it analysed
+         imgAnalysis.triggerStageImages();
+         stageImagesSaved_ = true;
+      }
+      studio_.getLogManager().logMessage("Pipeline: " + pipeline + ", camera frames skipped "
+            + grabber_.getDropped());
+      if (settings_.backgroundMode != BackgroundModel.Mode.NONE) {
+         settings_.background = imgAnalysis.getBackground();
+      }
+      if (pipeline.getError() != null) {
+         throw pipeline.getError();
+      }
+   }
+
+   // Time from taking the frame that crossed the trigger value up to the stop
+   // command being sent to the pump. This should stay below one camera frame.
+   private void recordTriggerLatency() throws Exception {
+      if (!triggered_) {
+         return;
+      }
+      long latency = System.nanoTime() - triggerFrame_;
+      lastTriggerLatency_ = latency;
+      maxTriggerLatency_ = Math.max(maxTriggerLatency_, latency);
+      double frameTime = studio_.core().getExposure();
+      studio_.getLogManager().logMessage(String.format(
+            "Trigger latency %.2f ms (max %.2f ms), exposure %.2f ms",
+            latency / 1e6, maxTriggerLatency_ / 1e6, frameTime));
+      if (latency / 1e6 > frameTime) {
+         studio_.getLogManager().logMessage("Trigger latency is longer than one frame.");
+      }
+   }
+
+   public double getLastTriggerLatencyMs() {
+      return lastTriggerLatency_ / 1e6;
+   }
+
+   public double getMaxTriggerLatencyMs() {
+      return maxTriggerLatency_ / 1e6;
+   }
+
+   // Re-analyses the recorded frames in settings_.batchInput (a directory of
+   // images or a TIFF stack) on all cores, and writes the count of every frame
+   // to a CSV file next to it
+   private void debugImageAnalysis() {
+      running.set(true);
+      File input = new File(settings_.batchInput);
+      File csv = new File(input.getAbsoluteFile().getParentFile(),
+            input.getName() + "_counts.csv");
+      AnalysisParameters parameters = new AnalysisParameters();
+      parameters.sigma = sigma;
+      parameters.minSize = settings_.minSize;
+      parameters.labeling = settings_.labeling;
+      parameters.cutoffCircularity = settings_.cutoffCircularity;
+      parameters.blur = settings_.blur;
+      parameters.fused = settings_.fusedPretreatment;
+      parameters.bitPacked = settings_.bitPackedMask;
+      try (FrameSource source = FrameSource.open(input)) {
+         BatchAnalysis batch = new BatchAnalysis(parameters,
+               Runtime.getRuntime().availableProcessors(), new StudioLog(studio_));
+         // The threshold of every frame follows its own bit depth, as in the live run
+         batch.setThresholdFraction(threshold);
+         long frames = batch.run(source, csv);
+         studio_.getLogManager().logMessage("Wrote the counts of " + frames
+               + " frames to " + csv);
+      } catch (Exception e) {
+         studio_.getLogManager().logError(e, "Something went wrong during image analysis.");
+      }
+      running.set(false);
    }
 
    // Debug function that can run on TP microscope
@@ -298,6 +578,14 @@ public class DeviceControl implements Runnable {
 
    private void runFullAnalysis() {
       running.set(true);
+      try {
+         live_.join();
+      } catch (CompletionException e) {
+         // Reported through the future of startAutomation
+         running.set(false);
+         settings_.setParameter(Settings.ParameterTypes.isRunning, 0.0);
+         return;
+      }
       try {
          acquisitionManager.setAcquisitionSettings(builder.build());
 
@@ -310,26 +598,31 @@ public class DeviceControl implements Runnable {
             studio_.core().setConfig(settings_.currGroup, settings_.trapConfig);
 
             // Close traps and start flow to start capturing particles
-            closeTrap();
-            startFlow();
+            await(closeTrap(), startFlow());
 
             // Wait until the required number of particles are trapped
             waitForParticles();
 
-            // Once enough particles are detected, stop flow, switch objective to zoom
-            stopFlow();
+            // Once enough particles are detected, stop flow, switch objective to zoom.
+            // The latency is taken on the device thread, once the stop was sent.
+            CompletableFuture<Void> stopped = stopFlow();
+            CompletableFuture<Void> latency = devices_.submit(this::recordTriggerLatency);
+            joinAnalysis();
+            await(stopped, latency);
 
             // Stop live recording (if not, you cannot take images
             snapLiveManager.setLiveModeOn(false);
             datastore = acquisitionManager.runAcquisition();
             snapLiveManager.setLiveModeOn(true);
-            TimeUnit.SECONDS.sleep(1); // Fill circular buffer
 
-            // Open traps start flow
-            openTrap();
-            startFlow();
+            // Open traps start flow, while the circular buffer fills
+            CompletableFuture<Void> opened = openTrap();
+            CompletableFuture<Void> started = startFlow();
+            CompletableFuture<Void> live = devices_.whenImage(deviceTimeout());
             studio_.core().setConfig(settings_.currGroup, settings_.releaseConfig);
-            TimeUnit.SECONDS.sleep(10); // Allow particles to flow out
+            await(opened, started, live);
+            // Allow particles to flow out, from the moment the flow is up
+            TimeUnit.MILLISECONDS.sleep((long) (settings_.releaseTime * 1000));
          }
       } catch (Exception e) {
          studio_.core().logMessage("Error occurred during the automated experiments.");
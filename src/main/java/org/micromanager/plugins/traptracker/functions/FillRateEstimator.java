@@ -0,0 +1,100 @@
+package org.micromanager.plugins.traptracker.functions;
+
+// Fits the filling of the traps online, in constant time and memory per count.
+// Traps fill along a saturation curve, each empty trap catches particles at the
+// same rate, so with C traps:
+//
+//    dN/dt = k * (C - N),   N(t) = C - (C - N0) * exp(-k * t)
+//
+// Every count adds the increment since the previous count to a weighted least
+// squares fit of k, dN = k * (C - N) * dt. The weights decay over time, so the
+// fit follows changes of the flow. When the number of traps is not known the
+// fill rate is taken as constant, which overestimates it towards the end.
+public class FillRateEstimator {
+
+   // Time constant of the weights in seconds, older increments count less
+   private static final double FORGETTING_TIME = 60;
+   // Counts, and counts that changed, before the fit is used
+   private static final int MIN_SAMPLES = 5;
+   private static final int MIN_CHANGES = 5;
+
+   private double capacity = 0;
+   // Sums of the normal equation, regressor x = (C - N) * dt, or dt without C
+   private double sxx;
+   private double sxy;
+   private double k; // Per second, or traps per second without C
+   private int samples;
+   private int changes;
+   private long lastNanos;
+   private int lastCount;
+
+   // Number of traps, 0 when unknown. Resets the fit.
+   public void setCapacity(double capacity) {
+      this.capacity = capacity;
+      reset();
+   }
+
+   public boolean isSaturating() {
+      return capacity > 0;
+   }
+
+   public void reset() {
+      sxx = 0;
+      sxy = 0;
+      k = 0;
+      samples = 0;
+      changes = 0;
+   }
+
+   // Count of the frame taken at nanos (System.nanoTime()), in time order
+   public void add(long nanos, int count) {
+      if (samples > 0) {
+         if (nanos <= lastNanos) {
+            return;
+         }
+         double dt = (nanos - lastNanos) / 1e9;
+         double decay = Math.exp(-dt / FORGETTING_TIME);
+         double x = isSaturating() ? (capacity - lastCount) * dt : dt;
+         double y = count - lastCount;
+         sxx = decay * sxx + x * x;
+         sxy = decay * sxy + x * y;
+         k = (sxx > 0) ? Math.max(0, sxy / sxx) : 0;
+         if (count != lastCount) {
+            changes++;
+         }
+      }
+      samples++;
+      lastNanos = nanos;
+      lastCount = count;
+   }
+
+   public boolean hasFit() {
+      return samples >= MIN_SAMPLES && changes >= MIN_CHANGES && k > 0;
+   }
+
+   // Fill rate at the last count, in traps per second
+   public double getRate() {
+      return isSaturating() ? k * Math.max(0, capacity - lastCount) : k;
+   }
+
+   // Predicted seconds from the last count until the count reaches target,
+   // infinite when there is no fit yet. The curve only approaches the number of
+   // traps, a target of all traps is reached when the curve is half a trap short,
+   // when the count rounds to it.
+   public double timeToReach(double target) {
+      if (target <= lastCount) {
+         return 0;
+      }
+      if (!hasFit()) {
+         return Double.POSITIVE_INFINITY;
+      }
+      if (!isSaturating()) {
+         return (target - lastCount) / k;
+      }
+      double reached = Math.min(target, capacity - 0.5);
+      if (reached <= lastCount) {
+         return 0;
+      }
+      return Math.log((capacity - lastCount) / (capacity - reached)) / k;
+   }
+}
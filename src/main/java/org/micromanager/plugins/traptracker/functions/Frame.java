@@ -0,0 +1,231 @@
+package org.micromanager.plugins.traptracker.functions;
+
+// A camera frame as the analysis takes it, in the buffer the core returns:
+// byte[] for 8 bit cameras and short[] for 12 to 16 bit cameras, one element per
+// pixel. Frames from files may also hold depth bytes per pixel in a byte[],
+// big-endian. The engine reads the buffers directly, without widening them to an
+// int image first. The number identifies the frame in a sequence or file, -1 if
+// unknown.
+public final class Frame {
+
+   private final byte[] image;
+   private final short[] shortImage;
+   private final int width;
+   private final int height;
+   private final int depth;
+   private final int bitDepth;
+   private final long number;
+
+   public Frame(byte[] image, int width, int height, int depth) {
+      this(image, width, height, depth, -1);
+   }
+
+   public Frame(byte[] image, int width, int height, int depth, long number) {
+      this(image, null, width, height, depth, 8 * depth, number);
+      if (image.length < width * height * depth) {
+         throw new IllegalArgumentException("Image buffer is smaller than "
+               + width + " x " + height + " x " + depth + " bytes");
+      }
+   }
+
+   public Frame(short[] image, int width, int height, int bitDepth) {
+      this(image, width, height, bitDepth, -1);
+   }
+
+   // bitDepth is the number of bits the camera uses, 12 for a 12 bit camera,
+   // which sets the range that the pixels are inverted in
+   public Frame(short[] image, int width, int height, int bitDepth, long number) {
+      this(null, image, width, height, 2, bitDepth, number);
+      if (image.length < width * height) {
+         throw new IllegalArgumentException("Image buffer is smaller than "
+               + width + " x " + height + " pixels");
+      }
+      if (bitDepth < 1 || bitDepth > 16) {
+         throw new IllegalArgumentException("Bit depth " + bitDepth + " does not fit 16 bit");
+      }
+   }
+
+   private Frame(byte[] image, short[] shortImage, int width, int height, int depth,
+                 int bitDepth, long number) {
+      this.image = image;
+      this.shortImage = shortImage;
+      this.width = width;
+      this.height = height;
+      this.depth = depth;
+      this.bitDepth = bitDepth;
+      this.number = number;
+   }
+
+   // Wraps an image as returned by CMMCore.getLastImage(), which is a byte[] for
+   // 8 bit and a short[] for 16 bit cameras
+   public static Frame of(Object image, int width, int height, int bitDepth, long number) {
+      if (image instanceof byte[]) {
+         return new Frame((byte[]) image, width, height, 1, number);
+      }
+      if (image instanceof short[]) {
+         return new Frame((short[]) image, width, height, bitDepth, number);
+      }
+      throw new IllegalArgumentException("Unsupported pixel type "
+            + (image == null ? "null" : image.getClass().getSimpleName())
+            + ", only 8 and 16 bit grayscale images can be analysed");
+   }
+
+   // Frame of unsigned pixel values, stored as byte[] for depth 1 and short[] for
+   // depth 2
+   public static Frame fromPixels(int[] pixels, int width, int height, int depth,
+                                  long number) {
+      int size = width * height;
+      if (depth == 2) {
+         short[] image = new short[size];
+         for (int i = 0; i < size; i++) {
+            image[i] = (short) pixels[i];
+         }
+         return new Frame(image, width, height, 16, number);
+      }
+      byte[] image = new byte[size * depth];
+      for (int i = 0; i < size; i++) {
+         for (int d = 0; d < depth; d++) {
+            image[depth * i + d] = (byte) (pixels[i] >>> (8 * (depth - 1 - d)));
+         }
+      }
+      return new Frame(image, width, height, depth, number);
+   }
+
+   // last when it wraps the same buffer in the same format, else a new frame of
+   // the buffer, so callers that reuse their buffer do not allocate every frame
+   static Frame wrap(Frame last, byte[] image, int width, int height, int depth) {
+      if (last != null && last.image == image && last.width == width
+            && last.height == height && last.depth == depth) {
+         return last;
+      }
+      return new Frame(image, width, height, depth);
+   }
+
+   // New frame of the same pixel format, with all pixels 0
+   public Frame allocate(int width, int height) {
+      if (shortImage != null) {
+         return new Frame(new short[width * height], width, height, bitDepth, number);
+      }
+      return new Frame(new byte[width * height * depth], width, height, depth, number);
+   }
+
+   // Same pixels, with another number
+   public Frame withNumber(long number) {
+      return new Frame(image, shortImage, width, height, depth, bitDepth, number);
+   }
+
+   // Byte buffer, null for a 16 bit frame
+   public byte[] getImage() {
+      return image;
+   }
+
+   // 16 bit buffer, null for a byte frame
+   public short[] getShortImage() {
+      return shortImage;
+   }
+
+   public int getWidth() {
+      return width;
+   }
+
+   public int getHeight() {
+      return height;
+   }
+
+   // Bytes per pixel
+   public int getDepth() {
+      return depth;
+   }
+
+   public int getBitDepth() {
+      return bitDepth;
+   }
+
+   // Largest pixel value of the camera, white
+   public int getMaxValue() {
+      return (int) ((1L << bitDepth) - 1);
+   }
+
+   public long getNumber() {
+      return number;
+   }
+
+   // Unsigned value of pixel i
+   public int pixel(int i) {
+      if (shortImage != null) {
+         return shortImage[i] & 0xffff;
+      }
+      if (depth == 1) {
+         return image[i] & 0xff;
+      }
+      int value = 0;
+      for (int d = 0; d < depth; d++) {
+         value = (value << 8) | (image[depth * i + d] & 0xff);
+      }
+      return value;
+   }
+
+   public void setPixel(int i, int value) {
+      if (shortImage != null) {
+         shortImage[i] = (short) value;
+      } else if (depth == 1) {
+         image[i] = (byte) value;
+      } else {
+         for (int d = 0; d < depth; d++) {
+            image[depth * i + d] = (byte) (value >>> (8 * (depth - 1 - d)));
+         }
+      }
+   }
+
+   // Copies pixels [from, from + count) to [to, to + count) of a frame of the same
+   // format
+   public void copyPixels(int from, Frame target, int to, int count) {
+      if (shortImage != null) {
+         System.arraycopy(shortImage, from, target.shortImage, to, count);
+      } else {
+         System.arraycopy(image, from * depth, target.image, to * depth, count * depth);
+      }
+   }
+
+   // Whether any pixel in [from, to) differs by more than tolerance from the same
+   // pixel of a frame of the same format
+   public boolean differs(Frame other, int from, int to, int tolerance) {
+      if (tolerance == 0) {
+         if (shortImage != null) {
+            short[] a = shortImage;
+            short[] b = other.shortImage;
+            for (int i = from; i < to; i++) {
+               if (a[i] != b[i]) {
+                  return true;
+               }
+            }
+            return false;
+         }
+         byte[] a = image;
+         byte[] b = other.image;
+         for (int i = from * depth; i < to * depth; i++) {
+            if (a[i] != b[i]) {
+               return true;
+            }
+         }
+         return false;
+      }
+      for (int i = from; i < to; i++) {
+         if (Math.abs(pixel(i) - other.pixel(i)) > tolerance) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   // Whether the frame can be copied into, or compared with, the other frame
+   public boolean sameFormat(Frame other) {
+      return samePixels(other) && width == other.width && height == other.height;
+   }
+
+   // Whether pixels can be copied between the frames
+   public boolean samePixels(Frame other) {
+      return other != null && depth == other.depth && bitDepth == other.bitDepth
+            && (shortImage == null) == (other.shortImage == null);
+   }
+}
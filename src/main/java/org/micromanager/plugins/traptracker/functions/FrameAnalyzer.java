@@ -0,0 +1,234 @@
+package org.micromanager.plugins.traptracker.functions;
+
+// Headless particle counting: takes a Frame and AnalysisParameters and returns an
+// AnalysisResult. Nothing here depends on Micro-Manager, logging and stage images
+// go to optional sinks, so the same counting code runs in the plugin (through
+// ImageAnalysis), in batch jobs and in benchmarks.
+//
+// Not thread-safe, the engine buffers are reused for every frame. Use one
+// analyzer per thread. Only the small AnalysisResult is allocated per frame.
+public class FrameAnalyzer {
+
+   private final ParticleCounter counter = new ParticleCounter();
+   private StageImageSink stageImages;
+   private TrapAnalyzer traps;
+   private final IncrementalAnalyzer incremental = new IncrementalAnalyzer();
+   private final BackgroundModel background = new BackgroundModel();
+   private final AutoThreshold autoThreshold = new AutoThreshold();
+   private final AnalysisParameters relative = new AnalysisParameters();
+   private AnalysisLog log;
+   private boolean trapSettingsLogged = false;
+
+   public FrameAnalyzer() {
+      setLog(AnalysisLog.SYSTEM_OUT);
+   }
+
+   public void setLog(AnalysisLog log) {
+      this.log = log;
+      counter.setLog(log);
+   }
+
+   // Sink for the stage images, null for none. Stage images are only produced
+   // by the separate stages, not by the fused pretreatment.
+   public void setStageImages(StageImageSink stageImages) {
+      this.stageImages = stageImages;
+   }
+
+   // Restricts the analysis to the traps of the map, null analyses the full frame.
+   // With a trap map there are no stage images, and the traps take the mean blur
+   // and the fixed threshold.
+   public void setTrapMap(TrapMap map) {
+      traps = (map == null) ? null : new TrapAnalyzer(map);
+      trapSettingsLogged = false;
+   }
+
+   public void setThreads(int threads) {
+      counter.setThreads(threads);
+   }
+
+   public IncrementalAnalyzer getIncremental() {
+      return incremental;
+   }
+
+   public ParticleCounter getCounter() {
+      return counter;
+   }
+
+   public BackgroundModel getBackground() {
+      return background;
+   }
+
+   // With a background model the first frame is taken as background when there
+   // is none yet, so the analysis should start with empty traps. A rolling
+   // background keeps learning from the frames without particles. The threshold
+   // of the parameters is that of raw frames, it is made relative to the
+   // background for the corrected frames.
+   public AnalysisResult analyze(Frame frame, AnalysisParameters parameters) {
+      background.configure(parameters.background, parameters.backgroundFrames);
+      if (background.getMode() == BackgroundModel.Mode.NONE) {
+         return analyzeCorrected(frame, parameters);
+      }
+      if (!background.hasBackground()) {
+         background.learn(frame);
+      }
+      Frame corrected = background.apply(frame);
+      AnalysisParameters correctedParameters = parameters;
+      if (corrected != frame) {
+         correctedParameters = relative.set(parameters);
+         correctedParameters.threshold = background.relativeThreshold(parameters.threshold,
+               frame.getMaxValue());
+      }
+      AnalysisResult result = analyzeCorrected(corrected, correctedParameters);
+      if (background.getMode() == BackgroundModel.Mode.ROLLING_MEAN && result.getCount() == 0) {
+         background.learn(frame);
+      }
+      return result;
+   }
+
+   private AnalysisResult analyzeCorrected(Frame frame, AnalysisParameters parameters) {
+      counter.setLabeling(parameters.labeling);
+      counter.setCutoffCircularity(parameters.cutoffCircularity);
+      counter.setFused(parameters.fused);
+      counter.setBitPacked(parameters.bitPacked);
+      counter.setBlur(parameters.blur);
+
+      if (traps != null) {
+         logIgnoredTrapSettings(parameters);
+         StageTimer timer = counter.getTimer();
+         timer.reset();
+         long start = System.nanoTime();
+         int[] trapCounts = traps.analyze(frame, parameters);
+         timer.add(StageTimer.Stage.TRAPS, start);
+         int count = 0;
+         for (int trapCount : trapCounts) {
+            count += trapCount;
+         }
+         return new AnalysisResult(frame.getNumber(), count, parameters.threshold, timer,
+               trapCounts);
+      }
+
+      if (parameters.incremental) {
+         StageTimer timer = counter.getTimer();
+         timer.reset();
+         int count = incremental.analyze(frame, parameters, parameters.changeTolerance, timer);
+         return new AnalysisResult(frame.getNumber(), count, parameters.threshold, timer);
+      }
+      incremental.reset();
+
+      // Trap maps and the incremental analysis keep the fixed threshold, with a
+      // threshold that changes every frame they would redo everything
+      autoThreshold.configure(parameters.autoThreshold, parameters.thresholdWindow);
+      if (autoThreshold.getMethod() == AutoThreshold.Method.FIXED) {
+         counter.setHistogram(null);
+         return analyzeFullFrame(frame, parameters, parameters.threshold);
+      }
+      if (isFused(parameters)) {
+         // The fused pass thresholds as it reads the frame, so it takes the
+         // threshold of the previous frames
+         int threshold = autoThreshold.hasThreshold()
+               ? autoThreshold.getThreshold() : parameters.threshold;
+         counter.setHistogram(autoThreshold.begin(frame.getMaxValue()));
+         AnalysisResult result = analyzeFullFrame(frame, parameters, threshold);
+         autoThreshold.end();
+         return result;
+      }
+      // The separate stages take the histogram of the unpack, before thresholding
+      counter.setHistogram(autoThreshold.begin(frame.getMaxValue()));
+      int[] pixels = counter.imageToPixels(frame);
+      autoThreshold.end();
+      return countPixels(frame, pixels, parameters, autoThreshold.getThreshold());
+   }
+
+   private AnalysisResult analyzeFullFrame(Frame frame, AnalysisParameters parameters,
+                                           int threshold) {
+      if (isFused(parameters) || stageImages == null || !stageImages.isEnabled()) {
+         int count = counter.getParticleCount(frame, parameters.sigma, threshold,
+               parameters.minSize);
+         return new AnalysisResult(frame.getNumber(), count, threshold, counter.getTimer());
+      }
+      return countPixels(frame, counter.imageToPixels(frame), parameters, threshold);
+   }
+
+   // The traps are pretreated with the fused pass, which has neither the Gaussian
+   // blur nor a threshold per frame. Logged once per trap map.
+   private void logIgnoredTrapSettings(AnalysisParameters parameters) {
+      if (trapSettingsLogged) {
+         return;
+      }
+      if (parameters.blur != ParticleCounter.Blur.MEAN) {
+         log.logMessage("The traps are analysed with the mean blur, the " + parameters.blur
+               + " blur is only used without a trap map.");
+      }
+      if (parameters.autoThreshold != AutoThreshold.Method.FIXED) {
+         log.logMessage("The traps are analysed with the fixed threshold "
+               + parameters.threshold + ", the " + parameters.autoThreshold
+               + " threshold is only used without a trap map.");
+      }
+      if (parameters.incremental) {
+         log.logMessage("The traps are analysed in full, the incremental analysis is only"
+               + " used without a trap map.");
+      }
+      trapSettingsLogged = true;
+   }
+
+   // The fused pass only has the mean blur, the Gaussian blur takes the
+   // separate stages
+   private static boolean isFused(AnalysisParameters parameters) {
+      return parameters.fused && parameters.blur == ParticleCounter.Blur.MEAN;
+   }
+
+   // Separate stages, on the unpacked pixels of the frame
+   private AnalysisResult countPixels(Frame frame, int[] pixels, AnalysisParameters parameters,
+                                      int threshold) {
+      int width = frame.getWidth();
+      int height = frame.getHeight();
+      pretreat(pixels, width, height, frame.getDepth(), frame.getMaxValue(),
+            parameters.sigma, threshold);
+      int count = counter.countParticles(pixels, width, height, parameters.minSize);
+      return new AnalysisResult(frame.getNumber(), count, threshold, counter.getTimer());
+   }
+
+   public void pretreatImage(int[] pixels,
+                             int width,
+                             int height,
+                             int depth,
+                             int sigma,
+                             int threshold
+   ) {
+      pretreat(pixels, width, height, depth, (1 << (8 * depth)) - 1, sigma, threshold);
+   }
+
+   // max is the white level of the camera, which can be below the range of depth
+   private void pretreat(int[] pixels, int width, int height, int depth, int max, int sigma,
+                         int threshold) {
+      beginFrame();
+      saveImg(pixels, width, height, depth, "Raw_image", false);
+
+      // Detect black particles, so invert image
+      counter.invertMax(pixels, max);
+      saveImg(pixels, width, height, depth, "After_invert", true);
+
+      counter.blur(pixels, width, height, sigma);
+      saveImg(pixels, width, height, depth, "After_blur", true);
+
+      counter.threshold(pixels, threshold);
+      saveImg(pixels, width, height, 1, "After_threshold", true);
+
+      // Particles have bright spot in center, fill it
+      counter.fillHoles(pixels, width, height);
+      saveImg(pixels, width, height, 1, "After_filling_holes", false);
+   }
+
+   private void beginFrame() {
+      if (stageImages != null) {
+         stageImages.beginFrame();
+      }
+   }
+
+   private void saveImg(int[] pixels, int width, int height, int depth, String name,
+                        boolean intermediate) {
+      if (stageImages != null && stageImages.isEnabled()) {
+         stageImages.submit(pixels, width, height, depth, name, intermediate);
+      }
+   }
+}
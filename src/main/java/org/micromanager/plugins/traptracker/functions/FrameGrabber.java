@@ -0,0 +1,154 @@
+package org.micromanager.plugins.traptracker.functions;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import mmcorej.CMMCore;
+import mmcorej.Metadata;
+
+// Takes frames from the circular buffer of the running live/sequence acquisition.
+// In SEQUENCE mode frames are recognised by their image number, so a frame is
+// never analysed twice and each new frame is picked up as soon as it arrives.
+// Cameras that do not number their frames are told apart by their pixels, a
+// frame that stays the same is taken again after the POLL interval.
+// The newest frame is always taken: frames that arrive while the previous one is
+// being analysed are dropped, and counted.
+public class FrameGrabber {
+
+   public enum Mode {
+      POLL,    // Take the last image once a second
+      SEQUENCE // Take every new image, up to the maximum analysis rate
+   }
+
+   private static final String IMAGE_NUMBER = "ImageNumber";
+   private static final long POLL_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+   private static final long IDLE_WAIT = TimeUnit.MILLISECONDS.toNanos(1);
+   private static final long STOP_CHECK = TimeUnit.MILLISECONDS.toNanos(50);
+
+   private final CMMCore core_;
+   private final Metadata metadata_ = new Metadata();
+
+   private Mode mode = Mode.POLL;
+   private volatile long minInterval = POLL_INTERVAL;
+   private long lastImageNumber;
+   private Object lastImage;
+   private boolean unnumberedLogged = false;
+   private long lastGrab;
+   private long frames;
+   private long dropped;
+
+   public FrameGrabber(CMMCore core) {
+      core_ = core;
+      reset();
+   }
+
+   // maxRate is in frames per second, 0 is unlimited. Ignored in POLL mode.
+   public void configure(Mode mode, double maxRate) {
+      this.mode = mode;
+      if (mode == Mode.POLL) {
+         minInterval = POLL_INTERVAL;
+      } else {
+         minInterval = (maxRate > 0) ? (long) (1e9 / maxRate) : 0;
+      }
+      reset();
+   }
+
+   // Changes the interval between frames while frames are taken, e.g. by the
+   // AnalysisRateController. configure sets it back.
+   public void setMinInterval(long nanos) {
+      minInterval = nanos;
+   }
+
+   public long getMinInterval() {
+      return minInterval;
+   }
+
+   public void reset() {
+      lastImageNumber = -1;
+      lastImage = null;
+      lastGrab = System.nanoTime() - minInterval;
+      frames = 0;
+      dropped = 0;
+   }
+
+   // Waits for a frame that has not been returned before, and that the rate limit
+   // allows to analyse. Returns null when keepWaiting turns false first.
+   public Object next(BooleanSupplier keepWaiting) throws Exception {
+      // The interval can shrink while waiting
+      long due;
+      while (System.nanoTime() - (due = lastGrab + minInterval) < 0) {
+         if (!keepWaiting.getAsBoolean()) {
+            return null;
+         }
+         LockSupport.parkNanos(Math.min(due - System.nanoTime(), STOP_CHECK));
+      }
+
+      while (keepWaiting.getAsBoolean()) {
+         metadata_.Clear();
+         Object image = core_.getLastImageMD(metadata_);
+         long imageNumber = imageNumber();
+         if (mode == Mode.POLL || isNew(image, imageNumber)) {
+            // Numbering restarts with every new sequence, only count real gaps
+            if (lastImageNumber >= 0 && imageNumber > lastImageNumber + 1) {
+               dropped += imageNumber - lastImageNumber - 1;
+            }
+            lastImageNumber = imageNumber;
+            lastImage = image;
+            lastGrab = System.nanoTime();
+            frames++;
+            return image;
+         }
+         LockSupport.parkNanos(IDLE_WAIT);
+      }
+      return null;
+   }
+
+   // System.nanoTime() at which the last frame was taken
+   public long getLastGrabNanos() {
+      return lastGrab;
+   }
+
+   public long getFrames() {
+      return frames;
+   }
+
+   // Frames that were skipped because a newer frame was already available
+   public long getDropped() {
+      return dropped;
+   }
+
+   private boolean isNew(Object image, long imageNumber) {
+      if (imageNumber >= 0) {
+         return imageNumber != lastImageNumber;
+      }
+      if (!unnumberedLogged) {
+         core_.logMessage("The camera does not set " + IMAGE_NUMBER
+               + ", new frames are recognised by their pixels.");
+         unnumberedLogged = true;
+      }
+      return !samePixels(image, lastImage) || System.nanoTime() - lastGrab >= POLL_INTERVAL;
+   }
+
+   private static boolean samePixels(Object image, Object other) {
+      if (image instanceof byte[] && other instanceof byte[]) {
+         return Arrays.equals((byte[]) image, (byte[]) other);
+      }
+      if (image instanceof short[] && other instanceof short[]) {
+         return Arrays.equals((short[]) image, (short[]) other);
+      }
+      return false;
+   }
+
+   // Image number of the frame, or -1 if the camera does not provide it
+   private long imageNumber() {
+      if (!metadata_.HasTag(IMAGE_NUMBER)) {
+         return -1;
+      }
+      try {
+         return Long.parseLong(metadata_.GetSingleTag(IMAGE_NUMBER).GetValue());
+      } catch (Exception e) {
+         return -1;
+      }
+   }
+}
@@ -0,0 +1,69 @@
+package org.micromanager.plugins.traptracker.functions;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Recycles the pixel buffers of frames, so a long run reads every frame into one
+// of a few buffers instead of allocating a new one per frame. Frames are 8 bit
+// in a byte[] or up to 16 bit in a short[], the format of the camera. Any thread
+// can acquire and release, the free buffers are kept in a BoundedQueue.
+//
+// A released frame must not be used anymore, its buffer is handed out again.
+public class FramePool {
+
+   private final BoundedQueue<Frame> free;
+   private final AtomicLong allocated = new AtomicLong();
+   private final AtomicLong recycled = new AtomicLong();
+
+   // Keeps at most capacity free buffers (rounded up to a power of 2), released
+   // frames beyond that are left to the garbage collector
+   public FramePool(int capacity) {
+      free = new BoundedQueue<>(capacity);
+   }
+
+   // Frame with undefined pixels, in a recycled buffer when one of the format is
+   // free. Free buffers of another format, from before an ROI change, are dropped.
+   public Frame acquire(int width, int height, int bitDepth, long number) {
+      Frame frame;
+      while ((frame = free.poll()) != null) {
+         if (fits(frame, width, height, bitDepth)) {
+            recycled.incrementAndGet();
+            return frame.withNumber(number);
+         }
+      }
+      allocated.incrementAndGet();
+      return allocate(width, height, bitDepth, number);
+   }
+
+   // New frame of the format, for sources without a pool
+   static Frame allocate(int width, int height, int bitDepth, long number) {
+      if (bitDepth <= 8) {
+         return new Frame(new byte[width * height], width, height, 1, number);
+      }
+      return new Frame(new short[width * height], width, height, bitDepth, number);
+   }
+
+   public void release(Frame frame) {
+      if (frame != null && fits(frame, frame.getWidth(), frame.getHeight(),
+            frame.getBitDepth())) {
+         free.offer(frame);
+      }
+   }
+
+   // Whether the frame has the buffer acquire would allocate for the format
+   private static boolean fits(Frame frame, int width, int height, int bitDepth) {
+      boolean shortPixels = bitDepth > 8;
+      return frame.getWidth() == width && frame.getHeight() == height
+            && frame.getBitDepth() == bitDepth
+            && (frame.getShortImage() != null) == shortPixels
+            && (shortPixels || frame.getDepth() == 1);
+   }
+
+   // Buffers allocated because none was free
+   public long getAllocated() {
+      return allocated.get();
+   }
+
+   public long getRecycled() {
+      return recycled.get();
+   }
+}
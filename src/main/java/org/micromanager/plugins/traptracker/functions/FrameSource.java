@@ -0,0 +1,30 @@
+package org.micromanager.plugins.traptracker.functions;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+// Sequence of recorded frames, read one at a time
+public interface FrameSource extends Closeable {
+
+   // Next frame, or null after the last one
+   Frame next() throws IOException;
+
+   // Reads the frames into buffers of the pool, the caller releases every frame
+   // once it is analysed. Sources that cannot use a pool ignore it.
+   default void setPool(FramePool pool) {
+   }
+
+   // A directory of images, a multi-page TIFF stack, or a single image
+   static FrameSource open(File file) throws IOException {
+      if (file.isDirectory()) {
+         return new ImageFileSource(ImageFileSource.listImages(file));
+      }
+      String name = file.getName().toLowerCase(Locale.ROOT);
+      if (name.endsWith(".tif") || name.endsWith(".tiff")) {
+         return new TiffStackReader(file);
+      }
+      return new ImageFileSource(new File[] {file});
+   }
+}
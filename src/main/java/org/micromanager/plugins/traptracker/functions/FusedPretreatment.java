@@ -0,0 +1,192 @@
+package org.micromanager.plugins.traptracker.functions;
+
+// Unpack, invert, 2D box blur and threshold fused into a single streaming pass
+// over the raw image, read in place from the 8 or 16 bit buffer, writing a binary
+// mask with one byte per pixel (1 is foreground), or a BitMask. Only 2 * sigma + 2
+// horizontally blurred rows are kept, instead of the full-frame int buffers the
+// separate stages read and write several times.
+//
+// The result is identical to the separate stages, including the edge handling
+// of meanBlur, which repeats the first pixel of a row (or column) on both ends.
+public class FusedPretreatment {
+
+   private int[] rows = new int[0];
+   private int[] firstRow = new int[0];
+   private int[] columnSum = new int[0];
+   private Histogram histogram;
+
+   // Histogram filled with the pixels of every frame, as they are read. Regions
+   // do not fill it. null for none.
+   public void setHistogram(Histogram histogram) {
+      this.histogram = histogram;
+   }
+
+   public void process(Frame img, int sigma, int threshold, byte[] mask) {
+      run(img, sigma, threshold, mask, null, histogram, 0, 0, img.getWidth(), img.getHeight());
+   }
+
+   // Only writes the mask pixels in [x0, x1) x [y0, y1), with the same values as
+   // processing the full frame
+   public void processRegion(Frame img,
+                             int sigma,
+                             int threshold,
+                             byte[] mask,
+                             int x0,
+                             int y0,
+                             int x1,
+                             int y1) {
+      run(img, sigma, threshold, mask, null, null, x0, y0, x1, y1);
+   }
+
+   // Same, writing a bit-packed mask. The mask is resized to the frame.
+   public void process(Frame img, int sigma, int threshold, BitMask mask) {
+      mask.resize(img.getWidth(), img.getHeight());
+      run(img, sigma, threshold, null, mask, histogram, 0, 0, img.getWidth(), img.getHeight());
+   }
+
+   private void run(Frame img,
+                    int sigma,
+                    int threshold,
+                    byte[] byteMask,
+                    BitMask bitMask,
+                    Histogram counts,
+                    int x0,
+                    int y0,
+                    int x1,
+                    int y1) {
+      int width = img.getWidth();
+      int height = img.getHeight();
+      int max = img.getMaxValue();
+      int columns = x1 - x0;
+      // Grow only, regions of different widths share the buffers
+      if (firstRow.length < columns) {
+         firstRow = new int[columns];
+         columnSum = new int[columns];
+      }
+      if (sigma <= 1) {
+         // No blurring, invert and threshold only
+         for (int y = y0; y < y1; y++) {
+            for (int x = 0; x < columns; x++) {
+               columnSum[x] = max - img.pixel(y * width + x0 + x);
+            }
+            count(img, y, counts);
+            writeRow(y, width, x0, columns, threshold + 1, byteMask, bitMask);
+         }
+         return;
+      }
+
+      int kernelSize = 2 * sigma + 1;
+      int ringSize = kernelSize + 1;
+      if (rows.length < columns * ringSize) {
+         rows = new int[columns * ringSize];
+      }
+
+      // Vertical window of output row y0 spans rows y0 - sigma..y0 + sigma, rows
+      // outside the image are replaced by row 0.
+      blurRow(img, 0, x0, columns, max, sigma, firstRow, 0);
+      count(img, 0, counts);
+      for (int x = 0; x < columns; x++) {
+         columnSum[x] = 0;
+      }
+      for (int r = y0 - sigma; r <= y0 + sigma; r++) {
+         addRow(img, r, x0, columns, max, sigma, ringSize, counts);
+      }
+
+      // columnSum / kernelSize > threshold, without the division
+      int limit = (threshold + 1) * kernelSize;
+      for (int y = y0; y < y1; y++) {
+         writeRow(y, width, x0, columns, limit, byteMask, bitMask);
+         if (y == y1 - 1) {
+            break;
+         }
+         // Slide the window: add row y + sigma + 1, remove row y - sigma
+         addRow(img, y + sigma + 1, x0, columns, max, sigma, ringSize, counts);
+         int removed = y - sigma;
+         int offset = (removed < 0) ? -1 : (removed % ringSize) * columns;
+         for (int x = 0; x < columns; x++) {
+            columnSum[x] -= (offset < 0) ? firstRow[x] : rows[offset + x];
+         }
+      }
+   }
+
+   // Writes columns [x0, x0 + columns) of row y of the mask, pixels with a column
+   // sum >= limit are foreground. Bit masks are always written for full rows.
+   private void writeRow(int y, int width, int x0, int columns, int limit, byte[] byteMask,
+                         BitMask bitMask) {
+      if (byteMask != null) {
+         int row = y * width + x0;
+         for (int x = 0; x < columns; x++) {
+            byteMask[row + x] = (columnSum[x] >= limit) ? (byte) 1 : (byte) 0;
+         }
+         return;
+      }
+      long[] words = bitMask.getWords();
+      int base = y * bitMask.getWordsPerRow();
+      for (int w0 = 0; w0 < width; w0 += 64) {
+         int n = Math.min(64, width - w0);
+         long word = 0;
+         for (int b = 0; b < n; b++) {
+            if (columnSum[w0 + b] >= limit) {
+               word |= 1L << b;
+            }
+         }
+         words[base + (w0 >>> 6)] = word;
+      }
+   }
+
+   // Blurs row r into the ring (or repeats row 0 outside the image) and adds it
+   // to the column sums.
+   private void addRow(Frame img, int r, int x0, int columns, int max, int sigma,
+                       int ringSize, Histogram counts) {
+      if (r < 0 || r >= img.getHeight()) {
+         for (int x = 0; x < columns; x++) {
+            columnSum[x] += firstRow[x];
+         }
+         return;
+      }
+      int offset = (r % ringSize) * columns;
+      if (r == 0) {
+         System.arraycopy(firstRow, 0, rows, offset, columns);
+      } else {
+         blurRow(img, r, x0, columns, max, sigma, rows, offset);
+         count(img, r, counts);
+      }
+      for (int x = 0; x < columns; x++) {
+         columnSum[x] += rows[offset + x];
+      }
+   }
+
+   // Adds row y to the histogram, while it is still in the cache. Every row is
+   // blurred once, so every pixel is counted once.
+   private static void count(Frame img, int y, Histogram histogram) {
+      if (histogram == null) {
+         return;
+      }
+      int[] counts = histogram.getCounts();
+      int shift = histogram.getShift();
+      int row = y * img.getWidth();
+      for (int i = row; i < row + img.getWidth(); i++) {
+         counts[img.pixel(i) >>> shift]++;
+      }
+   }
+
+   // Unpacks, inverts and box blurs columns [x0, x0 + columns) of a single row of
+   // the image into out
+   private static void blurRow(Frame img, int y, int x0, int columns, int max, int sigma,
+                               int[] out, int offset) {
+      int width = img.getWidth();
+      int row = y * width;
+      int kernelSize = 2 * sigma + 1;
+      int edge = max - img.pixel(row);
+      int partialSum = 0;
+      for (int i = x0 - sigma; i < x0 + sigma + 1; i++) {
+         partialSum += (i < 0 || i >= width) ? edge : max - img.pixel(row + i);
+      }
+      for (int x = x0; x < x0 + columns; x++) {
+         out[offset + x - x0] = partialSum / kernelSize;
+         partialSum += (x + sigma + 1 >= width)
+               ? edge : max - img.pixel(row + x + sigma + 1);
+         partialSum -= (x - sigma < 0) ? edge : max - img.pixel(row + x - sigma);
+      }
+   }
+}
@@ -0,0 +1,56 @@
+package org.micromanager.plugins.traptracker.functions;
+
+import java.util.Arrays;
+
+// Intensity histogram of the raw pixels of a frame, filled by the pass that
+// unpacks the frame anyway. Up to 16 bit the pixels are binned to at most
+// MAX_BINS bins.
+public final class Histogram {
+
+   public static final int MAX_BINS = 4096;
+
+   private int[] counts = new int[0];
+   private int shift;
+   private int maxValue = -1;
+
+   // Clears the histogram for pixels up to maxValue
+   public void reset(int maxValue) {
+      if (maxValue != this.maxValue) {
+         this.maxValue = maxValue;
+         int bits = 32 - Integer.numberOfLeadingZeros(maxValue);
+         shift = Math.max(0, bits - Integer.numberOfTrailingZeros(MAX_BINS));
+         counts = new int[(maxValue >>> shift) + 1];
+      } else {
+         Arrays.fill(counts, 0);
+      }
+   }
+
+   void add(int value) {
+      counts[value >>> shift]++;
+   }
+
+   int[] getCounts() {
+      return counts;
+   }
+
+   int getShift() {
+      return shift;
+   }
+
+   public int getBins() {
+      return counts.length;
+   }
+
+   public int getCount(int bin) {
+      return counts[bin];
+   }
+
+   public int getMaxValue() {
+      return maxValue;
+   }
+
+   // Highest pixel value in the bin
+   public int upperValue(int bin) {
+      return Math.min(maxValue, ((bin + 1) << shift) - 1);
+   }
+}
@@ -1,37 +1,49 @@
 package org.micromanager.plugins.traptracker.functions;
 
-import static java.awt.image.BufferedImage.TYPE_BYTE_GRAY;
-
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.LinkedList;
-import java.util.Queue;
-import javax.imageio.ImageIO;
 import javax.swing.JFileChooser;
 import org.micromanager.Studio;
 
+// Adapter of the headless FrameAnalyzer for the plugin: logs to the Micro-Manager
+// log and writes the stage images to a new folder in the user's documents.
 public class ImageAnalysis {
 
    private final Studio studio_;
+   private final FrameAnalyzer analyzer_ = new FrameAnalyzer();
+   private final ParticleCounter counter_ = analyzer_.getCounter();
+   private final AnalysisParameters parameters_ = new AnalysisParameters();
    private final String homeDir =
          new JFileChooser().getFileSystemView().getDefaultDirectory().toString();
-   private final double cutoffCircularity = 23;
    private String path;
-   private int imageCounter = 0;
+   private final StageImageWriter writer_;
+   private TrapMap trapMap_;
+   private Frame frame_;
 
    ImageAnalysis(Studio studio) {
       this.studio_ = studio;
+      analyzer_.setLog(new StudioLog(studio_));
 
+      boolean folderCreated = false;
       try {
          checkFileSystem();
+         folderCreated = true;
       } catch (Exception e) {
          studio_.getLogManager().logError(e, "Could not create folder.");
       }
+      writer_ = new StageImageWriter(new File(path), e -> {
+         studio_.getLogManager().logMessage("Could not write image.");
+         studio_.getLogManager().logError(e);
+      });
+      if (!folderCreated) {
+         writer_.configure(false, false, StageImageWriter.Policy.DROP_OLDEST, 1,
+               StageImageWriter.Format.JPEG);
+      }
+      analyzer_.setStageImages(writer_);
    }
 
    // Takes image and image analysis parameters and gives number of particles detected
@@ -42,21 +54,58 @@ public class ImageAnalysis {
                                int sigma,
                                int threshold,
                                int minSize) {
-      int[] pixels = imageToPixels(img, width, height, depth);
-      pretreatImage(pixels, width, height, depth, sigma, threshold);
-      return countParticles(pixels, width, height, minSize);
+      return analyze(img, width, height, depth, sigma, threshold, minSize).getCount();
+   }
+
+   // Same, with the number of particles per trap when a trap map is set
+   public AnalysisResult analyze(byte[] img,
+                                 int width,
+                                 int height,
+                                 int depth,
+                                 int sigma,
+                                 int threshold,
+                                 int minSize) {
+      frame_ = Frame.wrap(frame_, img, width, height, depth);
+      return analyze(frame_, sigma, threshold, minSize);
+   }
+
+   // Takes the frame in the buffer of the camera, byte[] or short[]
+   public AnalysisResult analyze(Frame frame, int sigma, int threshold, int minSize) {
+      parameters_.sigma = sigma;
+      parameters_.threshold = threshold;
+      parameters_.minSize = minSize;
+      return analyzer_.analyze(frame, parameters_);
+   }
+
+   // Only the traps of the map are analysed, null analyses the full frame
+   public void setTrapMap(TrapMap map) {
+      trapMap_ = map;
+      analyzer_.setTrapMap(map);
    }
 
-   private int[] imageToPixels(byte[] img, int width, int height, int depth) {
-      int[] imgOut = new int[width * height];
-      for (int i = 0; i < imgOut.length; i++) {
-         imgOut[i] = 0;
-         for (int d = 0; d < depth; d++) {
-            imgOut[i] <<= 8;
-            imgOut[i] |= (img[depth * i + d] & 0xff);
-         }
+   // Number of traps of the map, 0 without one
+   public int getTrapCount() {
+      return (trapMap_ == null) ? 0 : trapMap_.size();
+   }
+
+   // Analyzer for another analysis thread, with the trap map and background of
+   // this one, but no stage images. Configure everything before creating it.
+   public FrameAnalyzer newAnalyzer() {
+      FrameAnalyzer analyzer = new FrameAnalyzer();
+      analyzer.setLog(new StudioLog(studio_));
+      analyzer.setTrapMap(trapMap_);
+      analyzer.getBackground().configure(parameters_.background, parameters_.backgroundFrames);
+      Frame background = getBackground();
+      if (background != null) {
+         analyzer.getBackground().learn(background);
       }
-      return imgOut;
+      return analyzer;
+   }
+
+   // Copy of the options set so far, sigma, threshold and minSize are those of
+   // the last frame
+   public AnalysisParameters getParameters() {
+      return parameters_.copy();
    }
 
    public void pretreatImage(int[] pixels,
@@ -66,194 +115,104 @@ public class ImageAnalysis {
                              int sigma,
                              int threshold
    ) {
-      saveImg(pixels, width, height, 1, "Raw_image");
+      analyzer_.pretreatImage(pixels, width, height, depth, sigma, threshold);
+   }
 
-      // Detect black particles, so invert image
-      invert(pixels, depth);
-      saveImg(pixels, width, height, 1, "After_invert");
+   public void invert(int[] pixels, int depth) {
+      counter_.invert(pixels, depth);
+   }
 
-      // medianBlur blurs along x, and transposes the output
-      // Blurring twice will do 2D-blur, and keep image upright
-      meanBlur(pixels, width, height, sigma);
-      meanBlur(pixels, height, width, sigma);
-      saveImg(pixels, width, height, 1, "After_blur");
+   public void fillHoles(int[] pixels, int width, int height) {
+      counter_.fillHoles(pixels, width, height);
+   }
 
-      threshold(pixels, threshold);
-      saveImg(pixels, width, height, 1, "After_threshold");
+   public int countParticles(int[] pixels, int width, int height, int minSize) {
+      return counter_.countParticles(pixels, width, height, minSize);
+   }
 
-      // Particles have bright spot in center, fill it
-      fillHoles(pixels, width, height);
-      saveImg(pixels, width, height, 1, "After_filling_holes");
+   public void setLabeling(ParticleCounter.Labeling labeling, double cutoffCircularity) {
+      parameters_.labeling = labeling;
+      parameters_.cutoffCircularity = cutoffCircularity;
    }
 
-   public void invert(int[] pixels, int depth) {
-      for (int i = 0; i < pixels.length; i++) {
-         pixels[i] = (1 << (8 * depth)) - pixels[i] - 1;
-      }
+   public void setBlur(ParticleCounter.Blur blur) {
+      parameters_.blur = blur;
    }
 
-   public void fillHoles(int[] pixels, int width, int height) {
-      // Set all background pixels to temporary value
-      for (int i = 0; i < pixels.length; i++) {
-         if (pixels[i] == 0) {
-            pixels[i] = 2;
-         }
-      }
+   public void setFused(boolean fused, boolean bitPacked) {
+      parameters_.fused = fused;
+      parameters_.bitPacked = bitPacked;
+   }
 
-      // Add all edge background pixels to a queue (these are know to be outside
-      // a particle.
-      Queue<Integer> queue = new LinkedList<>();
-      // Vertical edges
-      for (int y = 0; y < height; y++) {
-         int i = y * width;
-         if (pixels[i] == 2) {
-            pixels[i] = 0;
-            queue.add(i);
-         }
-         i = y * width + width - 1;
-         if (pixels[i] == 2) {
-            pixels[i] = 0;
-            queue.add(i);
-         }
-      }
+   // Only reanalyse the tiles that changed since the previous frame, pixel changes
+   // up to the tolerance are ignored. No stage images are saved.
+   public void setIncremental(boolean incremental, int changeTolerance) {
+      parameters_.incremental = incremental;
+      parameters_.changeTolerance = changeTolerance;
+   }
 
-      // Horizontal edges
-      for (int x = 0; x < width; x++) {
-         int i = x;
-         if (pixels[i] == 2) {
-            pixels[i] = 0;
-            queue.add(i);
-         }
-         i = (height - 1) * width + x;
-         if (pixels[i] == 2) {
-            pixels[i] = 0;
-            queue.add(i);
-         }
-      }
+   // Subtracts the background of the empty chip from every frame, the threshold
+   // is then the darkness relative to the background
+   public void setBackground(BackgroundModel.Mode mode, int frames) {
+      parameters_.background = mode;
+      parameters_.backgroundFrames = frames;
+      analyzer_.getBackground().configure(mode, frames);
+   }
 
-      // Walk the queue. Every pixel neighboring a known outside pixel, is also outside
-      while (!queue.isEmpty()) {
-         int i = queue.remove();
-         // Left
-         if (i % width != 0 && pixels[i - 1] == 2) {
-            pixels[i - 1] = 0;
-            queue.add(i - 1);
-         }
-         // Above
-         if (i / width != 0 && pixels[i - width] == 2) {
-            pixels[i - width] = 0;
-            queue.add(i - width);
-         }
-         // Right
-         if (i % width != width - 1 && pixels[i + 1] == 2) {
-            pixels[i + 1] = 0;
-            queue.add(i + 1);
-         }
-         // Below
-         if (i / width != height - 1 && pixels[i + width] == 2) {
-            pixels[i + width] = 0;
-            queue.add(i + width);
-         }
-      }
+   // Uses the image as background, instead of the first frame analysed
+   public void setBackgroundReference(Frame background) {
+      analyzer_.getBackground().learn(background);
+   }
 
-      // All pixels not reset to 0 must be inside. Set them to 1
-      for (int i = 0; i < pixels.length; i++) {
-         if (pixels[i] == 2) {
-            pixels[i] = 255;
-         }
-      }
+   // Copy of the current background, or null
+   public Frame getBackground() {
+      return analyzer_.getBackground().getBackground();
    }
 
-   public int countParticles(int[] pixels, int width, int height, int minSize) {
-      int particleCount = 0;
-      Queue<Integer> queue = new LinkedList<>();
-      for (int i = 0; i < pixels.length; i++) {
-         // Skip background or already visited pixels
-         if (pixels[i] < 1) {
-            continue;
-         }
-
-         pixels[i] = -1; // Set visited pixel to -1 to distinguish from foreground and background
-         queue.add(i);
-         int area = 0;
-         int perimeter = 0;
-         while (!queue.isEmpty()) {
-            area++;
-            Integer idx = queue.remove();
-            // Left
-            if (idx % width == 0 || pixels[idx - 1] == 0) {
-               perimeter++;
-            } else if (pixels[idx - 1] > 0) {
-               queue.add(idx - 1);
-               pixels[idx - 1] = -1;
-            }
-            // Right
-            if (idx % width == width - 1 || pixels[idx + 1] == 0) {
-               perimeter++;
-            } else if (pixels[idx + 1] > 0) {
-               queue.add(idx + 1);
-               pixels[idx + 1] = -1;
-            }
-            // Top
-            if (idx / width == 0 || pixels[idx - width] == 0) {
-               perimeter++;
-            } else if (pixels[idx - width] > 0) {
-               queue.add(idx - width);
-               pixels[idx - width] = -1;
-            }
-            // Bottom
-            if (idx / width == height - 1 || pixels[idx + width] == 0) {
-               perimeter++;
-            } else if (pixels[idx + width] > 0) {
-               queue.add(idx + width);
-               pixels[idx + width] = -1;
-            }
-         }
-         // Circularity check. For a circle Perimeter^2/Area = 4 * Pi ~ 12.56.
-         // All other shapes have a higher P/A ratio. Algorithm is suboptimal, so
-         // Circles have a P/A ratio of ~20, cutoff is set at 23
-         // if ((double) (perimeter * perimeter) / area < cutoffCircularity && area > minSize) {
-         //    particleCount++;
-         // }
-         if (area > minSize) {
-            particleCount++;
-         }
-      }
-      return particleCount;
+   public void clearBackground() {
+      analyzer_.getBackground().clear();
+   }
+
+   // Takes the threshold of every frame from its histogram, pooled over window
+   // frames. The fixed threshold is used by the trap map and the incremental
+   // analysis, and by the fused pass for the first frame.
+   public void setAutoThreshold(AutoThreshold.Method method, int window) {
+      parameters_.autoThreshold = method;
+      parameters_.thresholdWindow = window;
+   }
+
+   public void configureStageImages(boolean enabled,
+                                    boolean intermediateStages,
+                                    StageImageWriter.Policy policy,
+                                    int everyNth,
+                                    StageImageWriter.Format format) {
+      boolean folderExists = Files.isDirectory(Paths.get(path));
+      writer_.configure(enabled && folderExists, intermediateStages, policy, everyNth,
+            format);
+   }
+
+   // Saves the stage images of the last frame, for the ON_TRIGGER policy
+   public void triggerStageImages() {
+      writer_.trigger();
+   }
+
+   // Time spent per stage on the last frame, excluding saving the stage images
+   public StageTimer getStageTimings() {
+      return counter_.getTimer();
+   }
+
+   public void setThreads(int threads) {
+      analyzer_.setThreads(threads);
    }
 
    public void threshold(int[] pixels, int threshold) {
-      for (int i = 0; i < pixels.length; i++) {
-         pixels[i] = (pixels[i] > threshold) ? 255 : 0;
-      }
+      counter_.threshold(pixels, threshold);
    }
 
    // Blur along x-direction, output is transposed, such that after two passes
    // the image is 2D-blurred.
    public void meanBlur(int[] pixels, int width, int height, int sigma) {
-      if (sigma <= 1) {
-         System.out.println("Kernel too small. No blurring was performed.");
-         return;
-      }
-
-      int[] temp = new int[pixels.length];
-      int partialSum = 0;
-      int size = 2 * sigma + 1;
-      for (int y = 0; y < height; y++) {
-         // Initialize window
-         partialSum = 0;
-         for (int i = -sigma; i < sigma + 1; i++) {
-            partialSum += (i < 0) ? pixels[y * width] : pixels[y * width + i];
-         }
-         // Bulk
-         for (int x = 0; x < width; x++) {
-            temp[x * height + y] = partialSum / size;
-            partialSum += (x + sigma + 1 >= width)
-                  ? pixels[y * width] : pixels[y * width + x + sigma + 1];
-            partialSum -= (x - sigma < 0) ? pixels[y * width] : pixels[y * width + x - sigma];
-         }
-      }
-      System.arraycopy(temp, 0, pixels, 0, width * height);
+      counter_.meanBlur(pixels, width, height, sigma);
    }
 
    private void checkFileSystem() throws IOException {
@@ -271,21 +230,4 @@ public class ImageAnalysis {
       path += "\\" + id;
       Files.createDirectory(Paths.get(path));
    }
-
-   private void saveImg(int[] pixels, int width, int height, int depth, String name) {
-      try {
-         BufferedImage b = new BufferedImage(width, height, TYPE_BYTE_GRAY);
-         for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-               int val = pixels[y * width + x];
-               b.setRGB(x, y, (val << 16) | (val << 8) | val);
-            }
-         }
-         ImageIO.write(b, "jpg", new File(path + "\\" + imageCounter + "_" + name + ".jpg"));
-         imageCounter++;
-      } catch (Exception e) {
-         studio_.getLogManager().logMessage("Could not write image.");
-         studio_.getLogManager().logError(e);
-      }
-   }
 }
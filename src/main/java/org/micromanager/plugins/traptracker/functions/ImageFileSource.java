@@ -0,0 +1,105 @@
+package org.micromanager.plugins.traptracker.functions;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import javax.imageio.ImageIO;
+
+// Reads a list of image files in order, one frame per file, or all pages for
+// TIFF stacks. RAW stage images are read with StageImageIO, other formats with
+// ImageIO (8 or 16 bit grayscale, other images use their first band).
+public class ImageFileSource implements FrameSource {
+
+   private final File[] files;
+   private int nextFile = 0;
+   private TiffStackReader stack;
+   private long number = 0;
+   private FramePool pool;
+
+   public ImageFileSource(File[] files) {
+      this.files = files;
+   }
+
+   @Override
+   public void setPool(FramePool pool) {
+      this.pool = pool;
+   }
+
+   // Image files in the directory, sorted by name
+   public static File[] listImages(File directory) throws IOException {
+      File[] files = directory.listFiles((dir, name) -> {
+         String lower = name.toLowerCase(Locale.ROOT);
+         return lower.endsWith(".tif") || lower.endsWith(".tiff") || lower.endsWith(".raw")
+               || lower.endsWith(".jpg") || lower.endsWith(".jpeg") || lower.endsWith(".png");
+      });
+      if (files == null) {
+         throw new IOException("Could not list " + directory);
+      }
+      Arrays.sort(files);
+      return files;
+   }
+
+   @Override
+   public Frame next() throws IOException {
+      while (true) {
+         if (stack != null) {
+            Frame page = stack.next();
+            if (page != null) {
+               return page.withNumber(number++);
+            }
+            stack.close();
+            stack = null;
+         }
+         if (nextFile >= files.length) {
+            return null;
+         }
+         File file = files[nextFile++];
+         String name = file.getName().toLowerCase(Locale.ROOT);
+         if (name.endsWith(".tif") || name.endsWith(".tiff")) {
+            stack = new TiffStackReader(file);
+            stack.setPool(pool);
+         } else if (name.endsWith(".raw")) {
+            StageImageIO.Image image = StageImageIO.read(file);
+            return toFrame(image.pixels, image.width, image.height, image.bytesPerPixel);
+         } else {
+            return readImage(file);
+         }
+      }
+   }
+
+   private Frame readImage(File file) throws IOException {
+      BufferedImage img = ImageIO.read(file);
+      if (img == null) {
+         throw new IOException("Could not read " + file);
+      }
+      int width = img.getWidth();
+      int height = img.getHeight();
+      Raster raster = img.getRaster();
+      int depth = (raster.getSampleModel().getSampleSize(0) > 8) ? 2 : 1;
+      int[] pixels = raster.getSamples(0, 0, width, height, 0, new int[width * height]);
+      return toFrame(pixels, width, height, depth);
+   }
+
+   private Frame toFrame(int[] pixels, int width, int height, int depth) {
+      // The pool only holds the camera formats, up to 16 bit
+      if (pool == null || depth > 2) {
+         return Frame.fromPixels(pixels, width, height, depth, number++);
+      }
+      Frame frame = pool.acquire(width, height, 8 * depth, number++);
+      for (int i = 0; i < width * height; i++) {
+         frame.setPixel(i, pixels[i]);
+      }
+      return frame;
+   }
+
+   @Override
+   public void close() throws IOException {
+      if (stack != null) {
+         stack.close();
+         stack = null;
+      }
+   }
+}
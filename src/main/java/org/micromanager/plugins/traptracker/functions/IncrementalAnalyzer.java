@@ -0,0 +1,221 @@
+package org.micromanager.plugins.traptracker.functions;
+
+// Analyses a stream of frames of a mostly static scene, redoing only the work for
+// the parts of the frame that changed. The frame is compared with the previous
+// one in tiles of TILE x TILE pixels; the threshold mask is recomputed only for
+// the changed tiles and the tiles within sigma pixels of them. If the mask did not
+// change, the components of the previous frame are reused, otherwise holes are
+// filled and the mask is labeled again on the bit-packed mask, which is cheap
+// compared to the blur.
+//
+// With a tolerance of 0 a tile is changed when any pixel differs, and the count
+// is identical to analysing the full frame. A higher tolerance ignores pixel
+// changes up to the tolerance, such as camera noise. Tiles are compared with the
+// pixels their mask was computed from, so small changes cannot add up.
+public class IncrementalAnalyzer {
+
+   public static final int TILE = 64;
+
+   private final FusedPretreatment fused = new FusedPretreatment();
+   private final BitMask bits = new BitMask();
+   private final RunLabeler labeler = new RunLabeler();
+   private Frame reference;
+   private byte[] mask = new byte[0];
+   private byte[] next = new byte[0];
+   private boolean[] changed = new boolean[0];
+   private boolean[] stale = new boolean[0];
+
+   private boolean valid = false;
+   private int width;
+   private int height;
+   private int sigma;
+   private int threshold;
+   private int tilesX;
+   private int tilesY;
+   private int recomputed;
+
+   // Starts over with the next frame
+   public void reset() {
+      valid = false;
+   }
+
+   // Fraction of the tiles whose mask was recomputed for the last frame
+   public double getRecomputedFraction() {
+      return (double) recomputed / (tilesX * tilesY);
+   }
+
+   public int analyze(Frame frame, AnalysisParameters parameters, int tolerance,
+                      StageTimer timer) {
+      long start = System.nanoTime();
+      boolean maskChanged;
+      if (!valid || !frame.sameFormat(reference) || parameters.sigma != sigma
+            || parameters.threshold != threshold) {
+         start(frame, parameters);
+         frame.copyPixels(0, reference, 0, width * height);
+         fused.process(reference, sigma, threshold, mask);
+         recomputed = tilesX * tilesY;
+         maskChanged = true;
+      } else {
+         findChangedTiles(frame, tolerance);
+         markStaleTiles();
+         maskChanged = updateMask();
+      }
+      timer.add(StageTimer.Stage.FUSED, start);
+
+      if (maskChanged) {
+         start = System.nanoTime();
+         pack();
+         bits.fillHoles();
+         timer.add(StageTimer.Stage.FILL_HOLES, start);
+         start = System.nanoTime();
+         labeler.label(bits);
+         timer.add(StageTimer.Stage.COUNT, start);
+      }
+      ComponentStats stats = labeler.getStats();
+      int count = 0;
+      for (int c = 0; c < stats.getCount(); c++) {
+         if (stats.getArea(c) > parameters.minSize && ParticleCounter.isRound(
+               stats.getArea(c), stats.getPerimeter(c), parameters.cutoffCircularity)) {
+            count++;
+         }
+      }
+      return count;
+   }
+
+   private void start(Frame frame, AnalysisParameters parameters) {
+      width = frame.getWidth();
+      height = frame.getHeight();
+      sigma = parameters.sigma;
+      threshold = parameters.threshold;
+      int size = width * height;
+      if (!frame.sameFormat(reference)) {
+         reference = frame.allocate(width, height);
+      }
+      if (mask.length != size) {
+         mask = new byte[size];
+         next = new byte[size];
+      }
+      tilesX = (width + TILE - 1) / TILE;
+      tilesY = (height + TILE - 1) / TILE;
+      if (changed.length != tilesX * tilesY) {
+         changed = new boolean[tilesX * tilesY];
+         stale = new boolean[tilesX * tilesY];
+      }
+      valid = true;
+   }
+
+   // Compares every tile with the reference, and copies the changed tiles into it
+   private void findChangedTiles(Frame img, int tolerance) {
+      for (int ty = 0; ty < tilesY; ty++) {
+         int yEnd = Math.min(height, (ty + 1) * TILE);
+         for (int tx = 0; tx < tilesX; tx++) {
+            int from = tx * TILE;
+            int to = Math.min(width, (tx + 1) * TILE);
+            boolean tileChanged = false;
+            for (int y = ty * TILE; y < yEnd && !tileChanged; y++) {
+               int row = y * width;
+               tileChanged = img.differs(reference, row + from, row + to, tolerance);
+            }
+            changed[ty * tilesX + tx] = tileChanged;
+            if (tileChanged) {
+               for (int y = ty * TILE; y < yEnd; y++) {
+                  int row = y * width;
+                  img.copyPixels(row + from, reference, row + from, to - from);
+               }
+            }
+         }
+      }
+   }
+
+   // A mask pixel depends on the pixels within sigma of it, so the tiles next to a
+   // changed tile are stale too. The blur repeats the first pixel of a row past
+   // both ends, and the first row past the top and bottom, so a change in the
+   // first column (row) of tiles also makes the last columns (rows) stale.
+   private void markStaleTiles() {
+      int reach = (sigma <= 1) ? 0 : (sigma + TILE - 1) / TILE;
+      int lastX = (sigma <= 1) ? tilesX : Math.max(0, (width - sigma) / TILE);
+      int lastY = (sigma <= 1) ? tilesY : Math.max(0, (height - sigma) / TILE);
+      for (int i = 0; i < stale.length; i++) {
+         stale[i] = false;
+      }
+      for (int ty = 0; ty < tilesY; ty++) {
+         for (int tx = 0; tx < tilesX; tx++) {
+            if (!changed[ty * tilesX + tx]) {
+               continue;
+            }
+            markStale(tx - reach, tx + reach, ty - reach, ty + reach);
+            if (tx == 0) {
+               markStale(lastX, tilesX - 1, ty - reach, ty + reach);
+            }
+            if (ty == 0) {
+               markStale(tx - reach, tx + reach, lastY, tilesY - 1);
+            }
+            if (tx == 0 && ty == 0) {
+               markStale(lastX, tilesX - 1, lastY, tilesY - 1);
+            }
+         }
+      }
+   }
+
+   private void markStale(int x0, int x1, int y0, int y1) {
+      for (int ty = Math.max(0, y0); ty <= Math.min(tilesY - 1, y1); ty++) {
+         for (int tx = Math.max(0, x0); tx <= Math.min(tilesX - 1, x1); tx++) {
+            stale[ty * tilesX + tx] = true;
+         }
+      }
+   }
+
+   // Recomputes the mask of the stale tiles, a run of stale tiles in a row of
+   // tiles at a time. Returns whether any mask pixel changed.
+   private boolean updateMask() {
+      boolean maskChanged = false;
+      recomputed = 0;
+      for (int ty = 0; ty < tilesY; ty++) {
+         int tx = 0;
+         while (tx < tilesX) {
+            if (!stale[ty * tilesX + tx]) {
+               tx++;
+               continue;
+            }
+            int runStart = tx;
+            while (tx < tilesX && stale[ty * tilesX + tx]) {
+               tx++;
+            }
+            recomputed += tx - runStart;
+            int x0 = runStart * TILE;
+            int x1 = Math.min(width, tx * TILE);
+            int y0 = ty * TILE;
+            int y1 = Math.min(height, y0 + TILE);
+            fused.processRegion(reference, sigma, threshold, next, x0, y0, x1, y1);
+            for (int y = y0; y < y1; y++) {
+               for (int i = y * width + x0; i < y * width + x1; i++) {
+                  if (next[i] != mask[i]) {
+                     mask[i] = next[i];
+                     maskChanged = true;
+                  }
+               }
+            }
+         }
+      }
+      return maskChanged;
+   }
+
+   // Copies the byte mask into the bit mask
+   private void pack() {
+      bits.resize(width, height);
+      long[] words = bits.getWords();
+      int wordsPerRow = bits.getWordsPerRow();
+      for (int y = 0; y < height; y++) {
+         int row = y * width;
+         for (int w = 0; w < wordsPerRow; w++) {
+            int x0 = w * 64;
+            int n = Math.min(64, width - x0);
+            long word = 0;
+            for (int b = 0; b < n; b++) {
+               word |= (long) mask[row + x0 + b] << b;
+            }
+            words[y * wordsPerRow + w] = word;
+         }
+      }
+   }
+}
@@ -0,0 +1,54 @@
+package org.micromanager.plugins.traptracker.functions;
+
+// FIFO queue of primitive ints backed by a ring buffer. Replaces LinkedList<Integer>
+// in the flood fills, so no node or boxed Integer is allocated per pixel.
+public class IntQueue {
+
+   private int[] buffer = new int[16];
+   private int mask = 15;
+   private int head = 0;
+   private int tail = 0;
+
+   // Grows the buffer so it can hold at least the given number of elements. The
+   // flood fills never enqueue a pixel twice, so the image size is always enough.
+   public void ensureCapacity(int capacity) {
+      if (capacity <= buffer.length) {
+         return;
+      }
+      int newLength = Integer.highestOneBit(capacity - 1) << 1;
+      int[] newBuffer = new int[newLength];
+      int size = size();
+      for (int i = 0; i < size; i++) {
+         newBuffer[i] = buffer[(head + i) & mask];
+      }
+      buffer = newBuffer;
+      mask = newLength - 1;
+      head = 0;
+      tail = size;
+   }
+
+   public void add(int value) {
+      if (tail - head == buffer.length) {
+         ensureCapacity(buffer.length + 1);
+      }
+      buffer[tail & mask] = value;
+      tail++;
+   }
+
+   public int remove() {
+      return buffer[head++ & mask];
+   }
+
+   public boolean isEmpty() {
+      return head == tail;
+   }
+
+   public int size() {
+      return tail - head;
+   }
+
+   public void clear() {
+      head = 0;
+      tail = 0;
+   }
+}
@@ -0,0 +1,175 @@
+package org.micromanager.plugins.traptracker.functions;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Runs the ParticleCounter stages on a ForkJoinPool, splitting the frame into
+// strips of rows. Hole filling and counting label every strip separately and
+// merge the labels at the strip seams, so the results are identical to the
+// serial path.
+class ParallelPipeline {
+
+   // Strips smaller than this are not worth the task overhead
+   private static final int MIN_STRIP_ROWS = 32;
+   private static final int MIN_CHUNK = 1 << 16;
+
+   private final ForkJoinPool pool;
+   // Line buffers of every strip of the Gaussian blur, and its box radii
+   private int[][] lines = new int[0][];
+   private int[][] temps = new int[0][];
+   private int[] radii;
+   private int radiiSigma = -1;
+
+   ParallelPipeline(int threads) {
+      pool = new ForkJoinPool(threads);
+   }
+
+   int getThreads() {
+      return pool.getParallelism();
+   }
+
+   void shutdown() {
+      pool.shutdown();
+   }
+
+   void invert(int[] pixels, int max) {
+      forEachRange(pixels.length, MIN_CHUNK, (from, to) ->
+            ParticleCounter.invertRange(pixels, max, from, to));
+   }
+
+   void threshold(int[] pixels, int threshold) {
+      forEachRange(pixels.length, MIN_CHUNK, (from, to) ->
+            ParticleCounter.thresholdRange(pixels, threshold, from, to));
+   }
+
+   // Same as ParticleCounter.meanBlur, every row writes its own column of temp
+   void meanBlur(int[] pixels, int[] temp, int width, int height, int sigma) {
+      forEachRange(height, MIN_STRIP_ROWS, (from, to) ->
+            ParticleCounter.blurRows(pixels, temp, width, height, sigma, from, to));
+      forEachRange(width * height, MIN_CHUNK, (from, to) ->
+            System.arraycopy(temp, from, pixels, from, to - from));
+   }
+
+   // Same as GaussianBlur.blur, on strips of rows and then of columns. Every
+   // strip has line buffers of its own.
+   void gaussianBlur(int[] pixels, int[] scratch, int width, int height, int sigma) {
+      if (sigma != radiiSigma) {
+         radii = GaussianBlur.radii(sigma);
+         radiiSigma = sigma;
+      }
+      if (radii == null) {
+         return;
+      }
+      ensureLines(Math.max(stripCount(height, MIN_STRIP_ROWS), stripCount(width, MIN_STRIP_ROWS)),
+            Math.max(width, height));
+      forEachStrip(height, MIN_STRIP_ROWS, (strip, from, to) -> GaussianBlur.blurLines(pixels,
+            width, radii, from, to, lines[strip], temps[strip]));
+      forEachRange(height, MIN_STRIP_ROWS, (from, to) ->
+            GaussianBlur.transpose(pixels, scratch, width, height, from, to));
+      forEachStrip(width, MIN_STRIP_ROWS, (strip, from, to) -> GaussianBlur.blurLines(scratch,
+            height, radii, from, to, lines[strip], temps[strip]));
+      forEachRange(width, MIN_STRIP_ROWS, (from, to) ->
+            GaussianBlur.transpose(scratch, pixels, height, width, from, to));
+   }
+
+   // Labels the background, and fills every background component that does not
+   // touch the image border.
+   void fillHoles(int[] pixels, int width, int height, ComponentLabeler labeler) {
+      link(pixels, width, height, labeler, true);
+      forEachRange(height, MIN_STRIP_ROWS, labeler::flattenRows);
+      labeler.markBorderComponents();
+      forEachRange(height, MIN_STRIP_ROWS, (from, to) ->
+            labeler.fillEnclosedRows(pixels, from, to));
+   }
+
+   // Labels the foreground, the statistics are available from the labeler
+   int label(int[] pixels, int width, int height, ComponentLabeler labeler) {
+      link(pixels, width, height, labeler, false);
+      // Shortens the chains the sequential resolve pass has to follow
+      forEachRange(height, MIN_STRIP_ROWS, labeler::flattenRows);
+      labeler.resolve();
+      return labeler.getStats().getCount();
+   }
+
+   private void link(int[] pixels, int width, int height, ComponentLabeler labeler,
+                     boolean background) {
+      labeler.prepare(width, height);
+      int strips = stripCount(height, MIN_STRIP_ROWS);
+      pool.invoke(new RangeTask((strip, from, to) ->
+            labeler.linkRows(pixels, from, to, background), height, strips, 0, strips));
+      for (int s = 1; s < strips; s++) {
+         labeler.mergeSeam(stripStart(height, strips, s));
+      }
+   }
+
+   private void forEachRange(int length, int minChunk, RangeBody body) {
+      forEachStrip(length, minChunk, (strip, from, to) -> body.run(from, to));
+   }
+
+   private void forEachStrip(int length, int minChunk, StripBody body) {
+      int strips = stripCount(length, minChunk);
+      if (strips == 1) {
+         body.run(0, 0, length);
+      } else {
+         pool.invoke(new RangeTask(body, length, strips, 0, strips));
+      }
+   }
+
+   // Allocates only when there are more strips or longer lines than before
+   private void ensureLines(int strips, int length) {
+      if (lines.length < strips || lines[0].length < length) {
+         int count = Math.max(strips, lines.length);
+         lines = new int[count][length];
+         temps = new int[count][length];
+      }
+   }
+
+   private int stripCount(int length, int minChunk) {
+      return Math.max(1, Math.min(4 * pool.getParallelism(), length / minChunk));
+   }
+
+   private static int stripStart(int length, int strips, int strip) {
+      return (int) ((long) length * strip / strips);
+   }
+
+   @FunctionalInterface
+   private interface RangeBody {
+      void run(int from, int to);
+   }
+
+   @FunctionalInterface
+   private interface StripBody {
+      void run(int strip, int from, int to);
+   }
+
+   // Splits strips [first, last) in halves until a single strip is left
+   private static class RangeTask extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+
+      private final StripBody body;
+      private final int length;
+      private final int strips;
+      private final int first;
+      private final int last;
+
+      RangeTask(StripBody body, int length, int strips, int first, int last) {
+         this.body = body;
+         this.length = length;
+         this.strips = strips;
+         this.first = first;
+         this.last = last;
+      }
+
+      @Override
+      protected void compute() {
+         if (last - first == 1) {
+            body.run(first, stripStart(length, strips, first),
+                  stripStart(length, strips, last));
+            return;
+         }
+         int middle = (first + last) >>> 1;
+         invokeAll(new RangeTask(body, length, strips, first, middle),
+               new RangeTask(body, length, strips, middle, last));
+      }
+   }
+}
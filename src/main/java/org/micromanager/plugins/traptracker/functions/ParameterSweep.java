@@ -0,0 +1,172 @@
+package org.micromanager.plugins.traptracker.functions;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Locale;
+
+// Counts the particles of a frame for every combination of a grid of sigma,
+// threshold and minSize values, sharing the intermediate results: the frame is
+// inverted once, blurred once per sigma, and thresholded, filled and labeled
+// once per (sigma, threshold). The counts for all minSize values then follow
+// from the sorted areas of the components.
+//
+//    java -cp TrapTracker.jar org.micromanager.plugins.traptracker.functions.ParameterSweep
+//          <directory or stack> <output.csv> <sigmas> <thresholds> <minSizes>
+//
+// with the values as comma separated lists, e.g. 2,3,4 200,216,230 0,20,40
+public class ParameterSweep {
+
+   private final int[] sigmas;
+   private final int[] thresholds;
+   private final int[] minSizes;
+   private final double cutoffCircularity;
+
+   private final ParticleCounter counter = new ParticleCounter();
+   private final ComponentLabeler labeler = new ComponentLabeler();
+   private int[] inverted = new int[0];
+   private int[] blurred = new int[0];
+   private int[] work = new int[0];
+   private int[] areas = new int[0];
+
+   public ParameterSweep(int[] sigmas, int[] thresholds, int[] minSizes,
+                         double cutoffCircularity) {
+      this.sigmas = sigmas.clone();
+      this.thresholds = thresholds.clone();
+      this.minSizes = minSizes.clone();
+      this.cutoffCircularity = cutoffCircularity;
+   }
+
+   public void setThreads(int threads) {
+      counter.setThreads(threads);
+   }
+
+   public void setLog(AnalysisLog log) {
+      counter.setLog(log);
+   }
+
+   public void setBlur(ParticleCounter.Blur blur) {
+      counter.setBlur(blur);
+   }
+
+   // Particle counts of the frame, indexed [sigma][threshold][minSize] in the
+   // order of the grid values
+   public int[][][] sweep(Frame frame) {
+      int width = frame.getWidth();
+      int height = frame.getHeight();
+      int size = width * height;
+      if (inverted.length != size) {
+         inverted = new int[size];
+         blurred = new int[size];
+         work = new int[size];
+      }
+      int[] pixels = counter.imageToPixels(frame);
+      System.arraycopy(pixels, 0, inverted, 0, size);
+      counter.invertMax(inverted, frame.getMaxValue());
+
+      int[][][] counts = new int[sigmas.length][thresholds.length][minSizes.length];
+      for (int s = 0; s < sigmas.length; s++) {
+         System.arraycopy(inverted, 0, blurred, 0, size);
+         counter.blur(blurred, width, height, sigmas[s]);
+         for (int t = 0; t < thresholds.length; t++) {
+            System.arraycopy(blurred, 0, work, 0, size);
+            counter.threshold(work, thresholds[t]);
+            counter.fillHoles(work, width, height);
+            labeler.label(work, width, height);
+            int n = sortedAreas(labeler.getStats());
+            for (int m = 0; m < minSizes.length; m++) {
+               counts[s][t][m] = n - countAtMost(n, minSizes[m]);
+            }
+         }
+      }
+      return counts;
+   }
+
+   // Sorts the areas of the components that pass the circularity check into
+   // areas, returns their number
+   private int sortedAreas(ComponentStats stats) {
+      if (areas.length < stats.getCount()) {
+         areas = new int[stats.getCount()];
+      }
+      int n = 0;
+      for (int c = 0; c < stats.getCount(); c++) {
+         if (ParticleCounter.isRound(stats.getArea(c), stats.getPerimeter(c),
+               cutoffCircularity)) {
+            areas[n++] = stats.getArea(c);
+         }
+      }
+      Arrays.sort(areas, 0, n);
+      return n;
+   }
+
+   // Number of the first n sorted areas that are <= value
+   private int countAtMost(int n, int value) {
+      int low = 0;
+      int high = n;
+      while (low < high) {
+         int mid = (low + high) >>> 1;
+         if (areas[mid] <= value) {
+            low = mid + 1;
+         } else {
+            high = mid;
+         }
+      }
+      return low;
+   }
+
+   // Sweeps every frame of the source, writing one row per frame and parameter
+   // combination. Returns the number of frames.
+   public long run(FrameSource source, File csv) throws IOException {
+      long frames = 0;
+      FramePool pool = new FramePool(2);
+      source.setPool(pool);
+      try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(csv.toPath(),
+            StandardCharsets.UTF_8))) {
+         out.println("frame,sigma,threshold,minSize,count");
+         Frame frame;
+         while ((frame = source.next()) != null) {
+            int[][][] counts = sweep(frame);
+            for (int s = 0; s < sigmas.length; s++) {
+               for (int t = 0; t < thresholds.length; t++) {
+                  for (int m = 0; m < minSizes.length; m++) {
+                     out.printf(Locale.ROOT, "%d,%d,%d,%d,%d%n", frame.getNumber(),
+                           sigmas[s], thresholds[t], minSizes[m], counts[s][t][m]);
+                  }
+               }
+            }
+            pool.release(frame);
+            frames++;
+         }
+      }
+      return frames;
+   }
+
+   private static int[] parseList(String list) {
+      String[] parts = list.split(",");
+      int[] values = new int[parts.length];
+      for (int i = 0; i < parts.length; i++) {
+         values[i] = Integer.parseInt(parts[i].trim());
+      }
+      return values;
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (args.length != 5) {
+         System.err.println("Usage: ParameterSweep <directory or stack> <output.csv>"
+               + " <sigmas> <thresholds> <minSizes>");
+         System.exit(1);
+      }
+      ParameterSweep sweep = new ParameterSweep(parseList(args[2]), parseList(args[3]),
+            parseList(args[4]), 0);
+      sweep.setThreads(Runtime.getRuntime().availableProcessors());
+      try (FrameSource source = FrameSource.open(new File(args[0]))) {
+         long start = System.nanoTime();
+         long frames = sweep.run(source, new File(args[1]));
+         System.out.printf(Locale.ROOT, "Swept %d frames in %.1f s%n", frames,
+               (System.nanoTime() - start) / 1e9);
+      }
+   }
+}
@@ -0,0 +1,576 @@
+package org.micromanager.plugins.traptracker.functions;
+
+// Stateful particle counting engine. The working buffers are owned by the engine
+// and keyed on the frame size, so they are only reallocated when the camera ROI
+// or binning changes. Counting a stream of frames does not allocate.
+public class ParticleCounter {
+
+   // Algorithm used by countParticles. Both give the same count, FLOOD_FILL is the
+   // original breadth-first search, UNION_FIND is the scan-line ComponentLabeler.
+   public enum Labeling {
+      FLOOD_FILL,
+      UNION_FIND
+   }
+
+   // Blur of the separate stages. MEAN is the original box blur, GAUSSIAN three
+   // stacked box blurs with clamped edges (GaussianBlur). The fused pass only
+   // implements MEAN, with GAUSSIAN the separate stages are used instead.
+   public enum Blur {
+      MEAN,
+      GAUSSIAN
+   }
+
+   private int[] pixels = new int[0];
+   private int[] scratch = new int[0];
+   private final IntQueue queue = new IntQueue();
+   private final ComponentLabeler labeler = new ComponentLabeler();
+   private final FusedPretreatment fused = new FusedPretreatment();
+   private byte[] mask = new byte[0];
+   private final BitMask bitMask = new BitMask();
+   private final RunLabeler runLabeler = new RunLabeler();
+   private boolean fusedPipeline = false;
+   private boolean bitPacked = false;
+   private Histogram histogram;
+   private Blur blur = Blur.MEAN;
+   private final GaussianBlur gaussian = new GaussianBlur();
+
+   private Labeling labeling = Labeling.FLOOD_FILL;
+   private double cutoffCircularity = 0;
+   private ParallelPipeline parallel;
+   private final StageTimer timer = new StageTimer();
+   private AnalysisLog log = AnalysisLog.SYSTEM_OUT;
+   private Frame wrapped;
+
+   // Takes image and image analysis parameters and gives number of particles detected
+   public int getParticleCount(byte[] img,
+                               int width,
+                               int height,
+                               int depth,
+                               int sigma,
+                               int threshold,
+                               int minSize) {
+      wrapped = Frame.wrap(wrapped, img, width, height, depth);
+      return getParticleCount(wrapped, sigma, threshold, minSize);
+   }
+
+   public int getParticleCount(Frame frame, int sigma, int threshold, int minSize) {
+      if (fusedPipeline && blur == Blur.MEAN) {
+         return getParticleCountFused(frame, sigma, threshold, minSize);
+      }
+      int width = frame.getWidth();
+      int height = frame.getHeight();
+      int[] pixels = imageToPixels(frame);
+      invertMax(pixels, frame.getMaxValue());
+      blur(pixels, width, height, sigma);
+      threshold(pixels, threshold);
+      fillHoles(pixels, width, height);
+      return countParticles(pixels, width, height, minSize);
+   }
+
+   // Pretreats the image with FusedPretreatment into a byte mask, which is then
+   // filled and labeled with the ComponentLabeler. When bit-packed, the mask is a
+   // BitMask, filled and labeled a word at a time by the RunLabeler instead. The
+   // intermediate stages are never materialized.
+   private int getParticleCountFused(Frame frame, int sigma, int threshold, int minSize) {
+      int width = frame.getWidth();
+      int height = frame.getHeight();
+      timer.reset();
+      long start = System.nanoTime();
+      if (bitPacked) {
+         fused.process(frame, sigma, threshold, bitMask);
+         timer.add(StageTimer.Stage.FUSED, start);
+         start = System.nanoTime();
+         bitMask.fillHoles();
+         timer.add(StageTimer.Stage.FILL_HOLES, start);
+         start = System.nanoTime();
+         runLabeler.label(bitMask);
+         int count = filterComponents(runLabeler.getStats(), minSize);
+         timer.add(StageTimer.Stage.COUNT, start);
+         return count;
+      }
+      if (mask.length != width * height) {
+         mask = new byte[width * height];
+      }
+      fused.process(frame, sigma, threshold, mask);
+      timer.add(StageTimer.Stage.FUSED, start);
+      start = System.nanoTime();
+      labeler.fillHoles(mask, width, height);
+      timer.add(StageTimer.Stage.FILL_HOLES, start);
+      start = System.nanoTime();
+      labeler.label(mask, width, height);
+      int count = filterComponents(labeler.getStats(), minSize);
+      timer.add(StageTimer.Stage.COUNT, start);
+      return count;
+   }
+
+   // Binary mask of the last frame counted with the fused pipeline
+   public byte[] getMask() {
+      return mask;
+   }
+
+   public BitMask getBitMask() {
+      return bitMask;
+   }
+
+   public void setLog(AnalysisLog log) {
+      this.log = log;
+   }
+
+   // Only used by the fused pipeline, the separate stages work on int images
+   public void setBitPacked(boolean bitPacked) {
+      this.bitPacked = bitPacked;
+   }
+
+   public void setFused(boolean fusedPipeline) {
+      this.fusedPipeline = fusedPipeline;
+   }
+
+   public boolean isFused() {
+      return fusedPipeline;
+   }
+
+   public void setBlur(Blur blur) {
+      this.blur = blur;
+   }
+
+   public Blur getBlur() {
+      return blur;
+   }
+
+   // Histogram filled with the raw pixels of every frame, by the unpack of the
+   // separate stages or by the fused pass. null for none.
+   public void setHistogram(Histogram histogram) {
+      this.histogram = histogram;
+      fused.setHistogram(histogram);
+   }
+
+   // Time spent per stage on the last frame
+   public StageTimer getTimer() {
+      return timer;
+   }
+
+   // Unpacks the frame into the engine's working buffer, straight from its 8 or
+   // 16 bit buffer. The returned array is overwritten by the next call. Starts the
+   // stage timings of a new frame.
+   public int[] imageToPixels(Frame frame) {
+      short[] img = frame.getShortImage();
+      if (img == null) {
+         return imageToPixels(frame.getImage(), frame.getWidth(), frame.getHeight(),
+               frame.getDepth());
+      }
+      timer.reset();
+      long start = System.nanoTime();
+      int size = frame.getWidth() * frame.getHeight();
+      ensureCapacity(size);
+      if (histogram == null) {
+         for (int i = 0; i < size; i++) {
+            pixels[i] = img[i] & 0xffff;
+         }
+      } else {
+         int[] counts = histogram.getCounts();
+         int shift = histogram.getShift();
+         for (int i = 0; i < size; i++) {
+            int value = img[i] & 0xffff;
+            pixels[i] = value;
+            counts[value >>> shift]++;
+         }
+      }
+      timer.add(StageTimer.Stage.UNPACK, start);
+      return pixels;
+   }
+
+   // Same for a byte image with depth bytes per pixel, big-endian
+   public int[] imageToPixels(byte[] img, int width, int height, int depth) {
+      timer.reset();
+      long start = System.nanoTime();
+      int size = width * height;
+      ensureCapacity(size);
+      if (histogram != null) {
+         unpackCounting(img, size, depth);
+         timer.add(StageTimer.Stage.UNPACK, start);
+         return pixels;
+      }
+      // The common depths get their own loop, which the JIT can vectorize
+      if (depth == 1) {
+         for (int i = 0; i < size; i++) {
+            pixels[i] = img[i] & 0xff;
+         }
+      } else if (depth == 2) {
+         for (int i = 0; i < size; i++) {
+            pixels[i] = ((img[2 * i] & 0xff) << 8) | (img[2 * i + 1] & 0xff);
+         }
+      } else {
+         for (int i = 0; i < size; i++) {
+            int value = 0;
+            for (int d = 0; d < depth; d++) {
+               value <<= 8;
+               value |= (img[depth * i + d] & 0xff);
+            }
+            pixels[i] = value;
+         }
+      }
+      timer.add(StageTimer.Stage.UNPACK, start);
+      return pixels;
+   }
+
+   // Unpacks and fills the histogram in the same pass
+   private void unpackCounting(byte[] img, int size, int depth) {
+      int[] counts = histogram.getCounts();
+      int shift = histogram.getShift();
+      if (depth == 1) {
+         for (int i = 0; i < size; i++) {
+            int value = img[i] & 0xff;
+            pixels[i] = value;
+            counts[value >>> shift]++;
+         }
+         return;
+      }
+      for (int i = 0; i < size; i++) {
+         int value = 0;
+         for (int d = 0; d < depth; d++) {
+            value = (value << 8) | (img[depth * i + d] & 0xff);
+         }
+         pixels[i] = value;
+         counts[value >>> shift]++;
+      }
+   }
+
+   private void ensureCapacity(int size) {
+      if (pixels.length != size) {
+         pixels = new int[size];
+      }
+      if (scratch.length != size) {
+         scratch = new int[size];
+      }
+      queue.ensureCapacity(size);
+   }
+
+   // Number of threads used by the stages. With more than one thread the frame
+   // is processed in strips on a ForkJoinPool, and countParticles always uses
+   // the union-find labeling, as the flood fill cannot be split.
+   public void setThreads(int threads) {
+      if (threads == getThreads()) {
+         return;
+      }
+      if (parallel != null) {
+         parallel.shutdown();
+         parallel = null;
+      }
+      if (threads > 1) {
+         parallel = new ParallelPipeline(threads);
+      }
+   }
+
+   public int getThreads() {
+      return parallel == null ? 1 : parallel.getThreads();
+   }
+
+   public void invert(int[] pixels, int depth) {
+      invertMax(pixels, (1 << (8 * depth)) - 1);
+   }
+
+   // Inverts in the range of the camera, max is 4095 for a 12 bit camera
+   public void invertMax(int[] pixels, int max) {
+      long start = System.nanoTime();
+      if (parallel != null) {
+         parallel.invert(pixels, max);
+      } else {
+         invertRange(pixels, max, 0, pixels.length);
+      }
+      timer.add(StageTimer.Stage.INVERT, start);
+   }
+
+   static void invertRange(int[] pixels, int max, int from, int to) {
+      for (int i = from; i < to; i++) {
+         pixels[i] = max - pixels[i];
+      }
+   }
+
+   public void threshold(int[] pixels, int threshold) {
+      long start = System.nanoTime();
+      if (parallel != null) {
+         parallel.threshold(pixels, threshold);
+      } else {
+         thresholdRange(pixels, threshold, 0, pixels.length);
+      }
+      timer.add(StageTimer.Stage.THRESHOLD, start);
+   }
+
+   // Branch-free version of (pixel > threshold) ? 255 : 0. The sign bit of
+   // threshold - pixel is set exactly when the pixel is above the threshold, and
+   // a loop without data-dependent branches can be vectorized by the JIT.
+   static void thresholdRange(int[] pixels, int threshold, int from, int to) {
+      for (int i = from; i < to; i++) {
+         pixels[i] = ((threshold - pixels[i]) >> 31) & 255;
+      }
+   }
+
+   // 2D blur with the selected blur, the image stays upright
+   public void blur(int[] pixels, int width, int height, int sigma) {
+      if (blur == Blur.MEAN) {
+         // meanBlur blurs along x, and transposes the output
+         meanBlur(pixels, width, height, sigma);
+         meanBlur(pixels, height, width, sigma);
+         return;
+      }
+      long start = System.nanoTime();
+      int size = width * height;
+      if (scratch.length != size) {
+         scratch = new int[size];
+      }
+      if (parallel != null) {
+         parallel.gaussianBlur(pixels, scratch, width, height, sigma);
+      } else {
+         gaussian.blur(pixels, scratch, width, height, sigma);
+      }
+      timer.add(StageTimer.Stage.BLUR, start);
+   }
+
+   // Blur along x-direction, output is transposed, such that after two passes
+   // the image is 2D-blurred.
+   public void meanBlur(int[] pixels, int width, int height, int sigma) {
+      if (sigma <= 1) {
+         log.logMessage("Kernel too small. No blurring was performed.");
+         return;
+      }
+
+      long start = System.nanoTime();
+      int size = width * height;
+      if (scratch.length != size) {
+         scratch = new int[size];
+      }
+      if (parallel != null) {
+         parallel.meanBlur(pixels, scratch, width, height, sigma);
+      } else {
+         blurRows(pixels, scratch, width, height, sigma, 0, height);
+         System.arraycopy(scratch, 0, pixels, 0, size);
+      }
+      timer.add(StageTimer.Stage.BLUR, start);
+   }
+
+   // Blurs rows [firstRow, lastRow) of pixels into the transposed image temp
+   static void blurRows(int[] pixels, int[] temp, int width, int height, int sigma,
+                        int firstRow, int lastRow) {
+      int partialSum;
+      int kernelSize = 2 * sigma + 1;
+      for (int y = firstRow; y < lastRow; y++) {
+         int row = y * width;
+         // Initialize window
+         partialSum = 0;
+         for (int i = -sigma; i < sigma + 1; i++) {
+            partialSum += (i < 0) ? pixels[row] : pixels[row + i];
+         }
+         // Bulk
+         for (int x = 0; x < width; x++) {
+            temp[x * height + y] = partialSum / kernelSize;
+            partialSum += (x + sigma + 1 >= width)
+                  ? pixels[row] : pixels[row + x + sigma + 1];
+            partialSum -= (x - sigma < 0) ? pixels[row] : pixels[row + x - sigma];
+         }
+      }
+   }
+
+   public void fillHoles(int[] pixels, int width, int height) {
+      long start = System.nanoTime();
+      if (parallel != null) {
+         parallel.fillHoles(pixels, width, height, labeler);
+      } else {
+         floodFillHoles(pixels, width, height);
+      }
+      timer.add(StageTimer.Stage.FILL_HOLES, start);
+   }
+
+   private void floodFillHoles(int[] pixels, int width, int height) {
+      int size = width * height;
+      queue.ensureCapacity(size);
+      queue.clear();
+
+      // Set all background pixels to temporary value
+      for (int i = 0; i < size; i++) {
+         if (pixels[i] == 0) {
+            pixels[i] = 2;
+         }
+      }
+
+      // Add all edge background pixels to a queue (these are know to be outside
+      // a particle.
+      // Vertical edges
+      for (int y = 0; y < height; y++) {
+         int i = y * width;
+         if (pixels[i] == 2) {
+            pixels[i] = 0;
+            queue.add(i);
+         }
+         i = y * width + width - 1;
+         if (pixels[i] == 2) {
+            pixels[i] = 0;
+            queue.add(i);
+         }
+      }
+
+      // Horizontal edges
+      for (int x = 0; x < width; x++) {
+         int i = x;
+         if (pixels[i] == 2) {
+            pixels[i] = 0;
+            queue.add(i);
+         }
+         i = (height - 1) * width + x;
+         if (pixels[i] == 2) {
+            pixels[i] = 0;
+            queue.add(i);
+         }
+      }
+
+      // Walk the queue. Every pixel neighboring a known outside pixel, is also outside
+      while (!queue.isEmpty()) {
+         int i = queue.remove();
+         // Left
+         if (i % width != 0 && pixels[i - 1] == 2) {
+            pixels[i - 1] = 0;
+            queue.add(i - 1);
+         }
+         // Above
+         if (i / width != 0 && pixels[i - width] == 2) {
+            pixels[i - width] = 0;
+            queue.add(i - width);
+         }
+         // Right
+         if (i % width != width - 1 && pixels[i + 1] == 2) {
+            pixels[i + 1] = 0;
+            queue.add(i + 1);
+         }
+         // Below
+         if (i / width != height - 1 && pixels[i + width] == 2) {
+            pixels[i + width] = 0;
+            queue.add(i + width);
+         }
+      }
+
+      // All pixels not reset to 0 must be inside. Set them to 1
+      for (int i = 0; i < size; i++) {
+         if (pixels[i] == 2) {
+            pixels[i] = 255;
+         }
+      }
+   }
+
+   public void setLabeling(Labeling labeling) {
+      this.labeling = labeling;
+   }
+
+   public Labeling getLabeling() {
+      return labeling;
+   }
+
+   // Maximum Perimeter^2/Area ratio of a particle, values <= 0 disable the check
+   public void setCutoffCircularity(double cutoffCircularity) {
+      this.cutoffCircularity = cutoffCircularity;
+   }
+
+   public ComponentLabeler getLabeler() {
+      return labeler;
+   }
+
+   public int countParticles(int[] pixels, int width, int height, int minSize) {
+      long start = System.nanoTime();
+      int count = (labeling == Labeling.UNION_FIND || parallel != null)
+            ? countComponents(pixels, width, height, minSize)
+            : floodFillCount(pixels, width, height, minSize);
+      timer.add(StageTimer.Stage.COUNT, start);
+      return count;
+   }
+
+   // Counts particles with the ComponentLabeler. Unlike the flood fill, the
+   // pixels are left untouched, and the statistics of every component remain
+   // available from getLabeler().
+   private int countComponents(int[] pixels, int width, int height, int minSize) {
+      if (parallel != null) {
+         parallel.label(pixels, width, height, labeler);
+      } else {
+         labeler.label(pixels, width, height);
+      }
+      return filterComponents(labeler.getStats(), minSize);
+   }
+
+   // Applies the particle filters to the components found by a labeler
+   private int filterComponents(ComponentStats stats, int minSize) {
+      int particleCount = 0;
+      for (int c = 0; c < stats.getCount(); c++) {
+         if (isParticle(stats.getArea(c), stats.getPerimeter(c), minSize)) {
+            particleCount++;
+         }
+      }
+      return particleCount;
+   }
+
+   // Circularity check. For a circle Perimeter^2/Area = 4 * Pi ~ 12.56.
+   // All other shapes have a higher P/A ratio. Algorithm is suboptimal, so
+   // Circles have a P/A ratio of ~20, a cutoff of 23 works well
+   private boolean isParticle(int area, int perimeter, int minSize) {
+      if (area <= minSize) {
+         return false;
+      }
+      return isRound(area, perimeter, cutoffCircularity);
+   }
+
+   static boolean isRound(int area, int perimeter, double cutoffCircularity) {
+      return cutoffCircularity <= 0
+            || (double) perimeter * perimeter / area < cutoffCircularity;
+   }
+
+   private int floodFillCount(int[] pixels, int width, int height, int minSize) {
+      int size = width * height;
+      queue.ensureCapacity(size);
+      queue.clear();
+
+      int particleCount = 0;
+      for (int i = 0; i < size; i++) {
+         // Skip background or already visited pixels
+         if (pixels[i] < 1) {
+            continue;
+         }
+
+         pixels[i] = -1; // Set visited pixel to -1 to distinguish from foreground and background
+         queue.add(i);
+         int area = 0;
+         int perimeter = 0;
+         while (!queue.isEmpty()) {
+            area++;
+            int idx = queue.remove();
+            // Left
+            if (idx % width == 0 || pixels[idx - 1] == 0) {
+               perimeter++;
+            } else if (pixels[idx - 1] > 0) {
+               queue.add(idx - 1);
+               pixels[idx - 1] = -1;
+            }
+            // Right
+            if (idx % width == width - 1 || pixels[idx + 1] == 0) {
+               perimeter++;
+            } else if (pixels[idx + 1] > 0) {
+               queue.add(idx + 1);
+               pixels[idx + 1] = -1;
+            }
+            // Top
+            if (idx / width == 0 || pixels[idx - width] == 0) {
+               perimeter++;
+            } else if (pixels[idx - width] > 0) {
+               queue.add(idx - width);
+               pixels[idx - width] = -1;
+            }
+            // Bottom
+            if (idx / width == height - 1 || pixels[idx + width] == 0) {
+               perimeter++;
+            } else if (pixels[idx + width] > 0) {
+               queue.add(idx + width);
+               pixels[idx + width] = -1;
+            }
+         }
+         if (isParticle(area, perimeter, minSize)) {
+            particleCount++;
+         }
+      }
+      return particleCount;
+   }
+}
@@ -0,0 +1,184 @@
+package org.micromanager.plugins.traptracker.functions;
+
+import java.util.Arrays;
+
+// Connected-component labeling (4-connected) of a BitMask on runs of foreground
+// bits instead of pixels. Runs are found a word at a time, overlapping runs of
+// consecutive rows are merged with union-find, and the perimeter is counted with
+// popcounts of the exposed top and bottom edges. Gives the same components and
+// statistics, in the same order, as the ComponentLabeler.
+public class RunLabeler {
+
+   private int[] runStart = new int[0];
+   private int[] runEnd = new int[0]; // Exclusive
+   private int[] runRow = new int[0];
+   private int[] parent = new int[0];
+   private int[] rowFirstRun = new int[0];
+   private int runCount;
+   private final ComponentStats stats = new ComponentStats();
+
+   public int label(BitMask mask) {
+      int height = mask.getHeight();
+      if (rowFirstRun.length < height + 1) {
+         rowFirstRun = new int[height + 1];
+      }
+      runCount = 0;
+      for (int y = 0; y < height; y++) {
+         rowFirstRun[y] = runCount;
+         findRuns(mask, y);
+         if (y > 0) {
+            linkRows(rowFirstRun[y - 1], rowFirstRun[y], runCount);
+         }
+      }
+      rowFirstRun[height] = runCount;
+      resolve(mask);
+      return stats.count;
+   }
+
+   public ComponentStats getStats() {
+      return stats;
+   }
+
+   private void findRuns(BitMask mask, int y) {
+      long[] words = mask.getWords();
+      int wordsPerRow = mask.getWordsPerRow();
+      int base = y * wordsPerRow;
+      int start = -1;
+      for (int w = 0; w < wordsPerRow; w++) {
+         long word = words[base + w];
+         int offset = w << 6;
+         int bit = 0;
+         while (bit < 64) {
+            if (start < 0) {
+               // Look for the start of a run
+               long ones = word >>> bit;
+               if (ones == 0) {
+                  break;
+               }
+               bit += Long.numberOfTrailingZeros(ones);
+               start = offset + bit;
+            } else {
+               // Look for the end of the run
+               long zeros = ~word >>> bit;
+               if (zeros == 0) {
+                  break;
+               }
+               bit += Long.numberOfTrailingZeros(zeros);
+               addRun(start, offset + bit, y);
+               start = -1;
+            }
+         }
+      }
+      if (start >= 0) {
+         addRun(start, mask.getWidth(), y);
+      }
+   }
+
+   private void addRun(int start, int end, int y) {
+      if (runCount == runStart.length) {
+         int capacity = Math.max(256, 2 * runStart.length);
+         runStart = Arrays.copyOf(runStart, capacity);
+         runEnd = Arrays.copyOf(runEnd, capacity);
+         runRow = Arrays.copyOf(runRow, capacity);
+         parent = Arrays.copyOf(parent, capacity);
+      }
+      runStart[runCount] = start;
+      runEnd[runCount] = end;
+      runRow[runCount] = y;
+      parent[runCount] = runCount;
+      runCount++;
+   }
+
+   // Merges every run of the current row [current, end) with the overlapping
+   // runs of the previous row [previous, current). Both rows are sorted on x.
+   private void linkRows(int previous, int current, int end) {
+      int a = previous;
+      int b = current;
+      while (a < current && b < end) {
+         if (runStart[a] < runEnd[b] && runStart[b] < runEnd[a]) {
+            union(a, b);
+         }
+         // Advance the run that ends first, it cannot overlap anything else
+         if (runEnd[a] < runEnd[b]) {
+            a++;
+         } else {
+            b++;
+         }
+      }
+   }
+
+   private int find(int i) {
+      while (parent[i] != i) {
+         parent[i] = parent[parent[i]];
+         i = parent[i];
+      }
+      return i;
+   }
+
+   private void union(int a, int b) {
+      int rootA = find(a);
+      int rootB = find(b);
+      if (rootA < rootB) {
+         parent[rootB] = rootA;
+      } else if (rootB < rootA) {
+         parent[rootA] = rootB;
+      }
+   }
+
+   // Flattens the forest into consecutive labels, in run order (which is scan
+   // order), and gathers the statistics of each component.
+   private void resolve(BitMask mask) {
+      stats.clear();
+      long[] words = mask.getWords();
+      int wordsPerRow = mask.getWordsPerRow();
+      int height = mask.getHeight();
+      for (int r = 0; r < runCount; r++) {
+         int start = runStart[r];
+         int end = runEnd[r];
+         int y = runRow[r];
+         int label;
+         if (parent[r] == r) {
+            label = stats.add(start, y);
+         } else {
+            // Roots are linked to the smaller run, which already holds its label
+            label = parent[parent[r]];
+         }
+         parent[r] = label;
+
+         int length = end - start;
+         stats.area[label] += length;
+         if (start < stats.minX[label]) {
+            stats.minX[label] = start;
+         }
+         if (end - 1 > stats.maxX[label]) {
+            stats.maxX[label] = end - 1;
+         }
+         stats.maxY[label] = y;
+
+         // Both ends of a run border the background, the top and bottom edges do
+         // where the neighbouring row is not set.
+         int edges = 2;
+         edges += (y == 0) ? length
+               : length - countBits(words, (y - 1) * wordsPerRow, start, end);
+         edges += (y == height - 1) ? length
+               : length - countBits(words, (y + 1) * wordsPerRow, start, end);
+         stats.perimeter[label] += edges;
+      }
+   }
+
+   // Number of set bits in [start, end) of the row beginning at word base
+   private static int countBits(long[] words, int base, int start, int end) {
+      int first = start >>> 6;
+      int last = (end - 1) >>> 6;
+      long firstMask = -1L << start;
+      long lastMask = -1L >>> (63 - ((end - 1) & 63));
+      if (first == last) {
+         return Long.bitCount(words[base + first] & firstMask & lastMask);
+      }
+      int count = Long.bitCount(words[base + first] & firstMask);
+      for (int w = first + 1; w < last; w++) {
+         count += Long.bitCount(words[base + w]);
+      }
+      return count + Long.bitCount(words[base + last] & lastMask);
+   }
+}
@@ -0,0 +1,155 @@
+package org.micromanager.plugins.traptracker.functions;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+// Lossless stage images, written as bulk buffer copies through a FileChannel.
+// Two formats are supported, both storing 8 or 16 bit unsigned pixels in
+// big-endian order, so they can be reloaded bit-exactly:
+//  - RAW: a 16 byte header ("TTRW", width, height, bytes per pixel) and the pixels
+//  - TIFF: an uncompressed, single strip, grayscale baseline TIFF
+public class StageImageIO {
+
+   public static final int RAW_MAGIC = 0x54545257; // "TTRW"
+   private static final int RAW_HEADER = 16;
+   private static final int TIFF_ENTRIES = 9;
+   private static final int TIFF_HEADER = 8 + 2 + 12 * TIFF_ENTRIES + 4;
+
+   // Image as read back from a file
+   public static final class Image {
+      public final int width;
+      public final int height;
+      public final int bytesPerPixel;
+      public final int[] pixels;
+
+      Image(int width, int height, int bytesPerPixel, int[] pixels) {
+         this.width = width;
+         this.height = height;
+         this.bytesPerPixel = bytesPerPixel;
+         this.pixels = pixels;
+      }
+   }
+
+   private ByteBuffer buffer = ByteBuffer.allocateDirect(0);
+
+   public void writeRaw(File file, int[] pixels, int width, int height, int bytesPerPixel)
+         throws IOException {
+      ByteBuffer out = prepare(RAW_HEADER + width * height * bytesPerPixel);
+      out.putInt(RAW_MAGIC).putInt(width).putInt(height).putInt(bytesPerPixel);
+      putPixels(out, pixels, width * height, bytesPerPixel);
+      write(file, out);
+   }
+
+   public void writeTiff(File file, int[] pixels, int width, int height, int bytesPerPixel)
+         throws IOException {
+      int dataSize = width * height * bytesPerPixel;
+      ByteBuffer out = prepare(TIFF_HEADER + dataSize);
+      out.put((byte) 'M').put((byte) 'M').putShort((short) 42).putInt(8);
+      out.putShort((short) TIFF_ENTRIES);
+      putTiffEntry(out, 256, 4, width);                // ImageWidth
+      putTiffEntry(out, 257, 4, height);               // ImageLength
+      putTiffEntry(out, 258, 3, 8 * bytesPerPixel);    // BitsPerSample
+      putTiffEntry(out, 259, 3, 1);                    // Compression: none
+      putTiffEntry(out, 262, 3, 1);                    // Photometric: black is zero
+      putTiffEntry(out, 273, 4, TIFF_HEADER);          // StripOffsets
+      putTiffEntry(out, 277, 3, 1);                    // SamplesPerPixel
+      putTiffEntry(out, 278, 4, height);               // RowsPerStrip
+      putTiffEntry(out, 279, 4, dataSize);             // StripByteCounts
+      out.putInt(0); // No next IFD
+      putPixels(out, pixels, width * height, bytesPerPixel);
+      write(file, out);
+   }
+
+   private ByteBuffer prepare(int size) {
+      if (buffer.capacity() < size) {
+         buffer = ByteBuffer.allocateDirect(size);
+      }
+      buffer.clear();
+      buffer.order(ByteOrder.BIG_ENDIAN);
+      return buffer;
+   }
+
+   private static void putTiffEntry(ByteBuffer out, int tag, int type, int value) {
+      out.putShort((short) tag).putShort((short) type).putInt(1);
+      if (type == 3) {
+         // SHORT values are left-aligned in the value field
+         out.putShort((short) value).putShort((short) 0);
+      } else {
+         out.putInt(value);
+      }
+   }
+
+   // Stores the pixels as unsigned values, clamped to the range of the depth
+   private static void putPixels(ByteBuffer out, int[] pixels, int size, int bytesPerPixel) {
+      if (bytesPerPixel == 1) {
+         for (int i = 0; i < size; i++) {
+            out.put((byte) Math.max(0, Math.min(0xff, pixels[i])));
+         }
+      } else {
+         for (int i = 0; i < size; i++) {
+            out.putShort((short) Math.max(0, Math.min(0xffff, pixels[i])));
+         }
+      }
+   }
+
+   private static void write(File file, ByteBuffer out) throws IOException {
+      out.flip();
+      try (FileChannel channel = FileChannel.open(file.toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+         while (out.hasRemaining()) {
+            channel.write(out);
+         }
+      }
+   }
+
+   // Reads a RAW file, or the first page of an uncompressed TIFF
+   public static Image read(File file) throws IOException {
+      try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+         MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+         if (in.getInt(0) == RAW_MAGIC) {
+            int width = in.getInt(4);
+            int height = in.getInt(8);
+            int bytesPerPixel = in.getInt(12);
+            in.position(RAW_HEADER);
+            return new Image(width, height, bytesPerPixel,
+                  getPixels(in, width * height, bytesPerPixel));
+         }
+      }
+      return readTiff(file);
+   }
+
+   private static Image readTiff(File file) throws IOException {
+      try (TiffStackReader reader = new TiffStackReader(file)) {
+         Frame frame = reader.next();
+         if (frame == null) {
+            throw new IOException(file + " has no images");
+         }
+         int[] pixels = new int[frame.getWidth() * frame.getHeight()];
+         for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = frame.pixel(i);
+         }
+         return new Image(frame.getWidth(), frame.getHeight(), frame.getDepth(), pixels);
+      }
+   }
+
+   private static int[] getPixels(ByteBuffer in, int size, int bytesPerPixel) {
+      int[] pixels = new int[size];
+      if (bytesPerPixel == 1) {
+         for (int i = 0; i < size; i++) {
+            pixels[i] = in.get() & 0xff;
+         }
+      } else {
+         for (int i = 0; i < size; i++) {
+            pixels[i] = in.getShort() & 0xffff;
+         }
+      }
+      return pixels;
+   }
+}
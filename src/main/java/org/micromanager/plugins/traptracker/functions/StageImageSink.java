@@ -0,0 +1,15 @@
+package org.micromanager.plugins.traptracker.functions;
+
+// Receives the intermediate images of the separate pretreatment stages
+public interface StageImageSink {
+
+   boolean isEnabled();
+
+   // Called before the stage images of a new frame are submitted
+   void beginFrame();
+
+   // The pixels are only valid during the call. bytesPerPixel is the depth of
+   // the values, intermediate is false for the raw and the final image.
+   void submit(int[] pixels, int width, int height, int bytesPerPixel, String name,
+               boolean intermediate);
+}
@@ -0,0 +1,205 @@
+package org.micromanager.plugins.traptracker.functions;
+
+import static java.awt.image.BufferedImage.TYPE_BYTE_GRAY;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import javax.imageio.ImageIO;
+
+// Writes the stage images of the analysis on a background thread. Images are
+// copied into recycled buffers and put on a bounded queue; when the writer falls
+// behind, the oldest pending image is dropped, so the analysis never blocks on
+// disk I/O.
+//
+// JPEG is lossy and only holds 8 bit, RAW and TIFF keep the pixel values as they
+// are (8 or 16 bit), so a dump can be reloaded with StageImageIO.read().
+public class StageImageWriter implements StageImageSink {
+
+   public enum Policy {
+      DROP_OLDEST, // Every frame is saved, as far as the writer keeps up
+      EVERY_NTH,   // Only every nth frame is saved
+      ON_TRIGGER   // Only the last frame before a call to trigger() is saved
+   }
+
+   public enum Format {
+      JPEG,
+      RAW, // StageImageIO header followed by the pixels
+      TIFF // Uncompressed grayscale TIFF
+   }
+
+   private static final int QUEUE_SIZE = 32;
+
+   private static final class StageImage {
+      private int[] pixels;
+      private int width;
+      private int height;
+      private int bytesPerPixel;
+      private String name;
+   }
+
+   private final File directory;
+   private final Consumer<Exception> errorHandler;
+   private final ArrayBlockingQueue<StageImage> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+   private final ArrayBlockingQueue<StageImage> free = new ArrayBlockingQueue<>(2 * QUEUE_SIZE);
+   private final List<StageImage> held = new ArrayList<>();
+   private final AtomicInteger dropped = new AtomicInteger(0);
+   private final Thread thread;
+
+   private volatile boolean enabled = true;
+   private volatile boolean intermediateStages = true;
+   private volatile Policy policy = Policy.DROP_OLDEST;
+   private volatile int everyNth = 1;
+   private volatile Format format = Format.JPEG;
+
+   private int frame = 0;
+   private boolean captureFrame = false;
+   private int imageCounter = 0;
+   private BufferedImage image;
+   private final StageImageIO io = new StageImageIO();
+
+   public StageImageWriter(File directory, Consumer<Exception> errorHandler) {
+      this.directory = directory;
+      this.errorHandler = errorHandler;
+      thread = new Thread(this::writeLoop, "TrapTracker stage image writer");
+      thread.setDaemon(true);
+      thread.start();
+   }
+
+   public void configure(boolean enabled, boolean intermediateStages, Policy policy,
+                         int everyNth, Format format) {
+      this.enabled = enabled;
+      this.intermediateStages = intermediateStages;
+      this.policy = policy;
+      this.everyNth = Math.max(1, everyNth);
+      this.format = format;
+   }
+
+   @Override
+   public boolean isEnabled() {
+      return enabled;
+   }
+
+   // Number of images dropped because the queue was full
+   public int getDropped() {
+      return dropped.get();
+   }
+
+   // Called before the stage images of a new frame are submitted
+   @Override
+   public synchronized void beginFrame() {
+      frame++;
+      captureFrame = enabled && (policy != Policy.EVERY_NTH || frame % everyNth == 0);
+      // Images held for a trigger that did not come are recycled
+      for (StageImage stageImage : held) {
+         free.offer(stageImage);
+      }
+      held.clear();
+   }
+
+   // Copies the image and queues it for writing, if the policy selects this frame.
+   // bytesPerPixel is the depth stored in RAW and TIFF files.
+   @Override
+   public synchronized void submit(int[] pixels, int width, int height, int bytesPerPixel,
+                                   String name, boolean intermediate) {
+      if (!captureFrame || (intermediate && !intermediateStages)) {
+         return;
+      }
+      StageImage stageImage = free.poll();
+      if (stageImage == null) {
+         stageImage = new StageImage();
+      }
+      int size = width * height;
+      if (stageImage.pixels == null || stageImage.pixels.length < size) {
+         stageImage.pixels = new int[size];
+      }
+      System.arraycopy(pixels, 0, stageImage.pixels, 0, size);
+      stageImage.width = width;
+      stageImage.height = height;
+      stageImage.bytesPerPixel = bytesPerPixel;
+      stageImage.name = name;
+
+      if (policy == Policy.ON_TRIGGER) {
+         held.add(stageImage);
+      } else {
+         enqueue(stageImage);
+      }
+   }
+
+   // Writes the images of the last frame, when using the ON_TRIGGER policy
+   public synchronized void trigger() {
+      for (StageImage stageImage : held) {
+         enqueue(stageImage);
+      }
+      held.clear();
+   }
+
+   private void enqueue(StageImage stageImage) {
+      while (!queue.offer(stageImage)) {
+         StageImage oldest = queue.poll();
+         if (oldest != null) {
+            free.offer(oldest);
+            dropped.incrementAndGet();
+         }
+      }
+   }
+
+   public void close() {
+      thread.interrupt();
+   }
+
+   private void writeLoop() {
+      while (!Thread.currentThread().isInterrupted()) {
+         StageImage stageImage;
+         try {
+            stageImage = queue.take();
+         } catch (InterruptedException e) {
+            return;
+         }
+         try {
+            write(stageImage);
+         } catch (Exception e) {
+            errorHandler.accept(e);
+         }
+         free.offer(stageImage);
+      }
+   }
+
+   private void write(StageImage stageImage) throws Exception {
+      String name = imageCounter + "_" + stageImage.name;
+      imageCounter++;
+      switch (format) {
+         case RAW:
+            io.writeRaw(new File(directory, name + ".raw"), stageImage.pixels,
+                  stageImage.width, stageImage.height, stageImage.bytesPerPixel);
+            break;
+         case TIFF:
+            io.writeTiff(new File(directory, name + ".tif"), stageImage.pixels,
+                  stageImage.width, stageImage.height, stageImage.bytesPerPixel);
+            break;
+         default:
+            writeJpeg(stageImage, new File(directory, name + ".jpg"));
+            break;
+      }
+   }
+
+   private void writeJpeg(StageImage stageImage, File file) throws Exception {
+      if (image == null
+            || image.getWidth() != stageImage.width
+            || image.getHeight() != stageImage.height) {
+         image = new BufferedImage(stageImage.width, stageImage.height, TYPE_BYTE_GRAY);
+      }
+      // Fill the raster directly, instead of converting every pixel with setRGB
+      byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+      int[] pixels = stageImage.pixels;
+      for (int i = 0; i < stageImage.width * stageImage.height; i++) {
+         data[i] = (byte) Math.max(0, Math.min(255, pixels[i]));
+      }
+      ImageIO.write(image, "jpg", file);
+   }
+}
@@ -0,0 +1,53 @@
+package org.micromanager.plugins.traptracker.functions;
+
+// Accumulates the time spent in each stage of the particle counting pipeline
+// for the current frame.
+public class StageTimer {
+
+   public enum Stage {
+      UNPACK,
+      INVERT,
+      BLUR,
+      THRESHOLD,
+      FILL_HOLES,
+      COUNT,
+      FUSED,
+      TRAPS
+   }
+
+   private final long[] nanos = new long[Stage.values().length];
+
+   public void reset() {
+      for (int i = 0; i < nanos.length; i++) {
+         nanos[i] = 0;
+      }
+   }
+
+   // Adds the time since start, as given by System.nanoTime()
+   public void add(Stage stage, long start) {
+      nanos[stage.ordinal()] += System.nanoTime() - start;
+   }
+
+   public long getNanos(Stage stage) {
+      return nanos[stage.ordinal()];
+   }
+
+   public long getTotalNanos() {
+      long total = 0;
+      for (long n : nanos) {
+         total += n;
+      }
+      return total;
+   }
+
+   @Override
+   public String toString() {
+      StringBuilder sb = new StringBuilder("Stage timings (ms):");
+      for (Stage stage : Stage.values()) {
+         if (nanos[stage.ordinal()] > 0) {
+            sb.append(String.format(" %s %.2f", stage, nanos[stage.ordinal()] / 1e6));
+         }
+      }
+      return sb.append(String.format(", total %.2f", getTotalNanos() / 1e6)).toString();
+   }
+}
@@ -0,0 +1,23 @@
+package org.micromanager.plugins.traptracker.functions;
+
+import org.micromanager.Studio;
+
+// Sends the messages of the analysis to the Micro-Manager log
+public class StudioLog implements AnalysisLog {
+
+   private final Studio studio_;
+
+   public StudioLog(Studio studio) {
+      studio_ = studio;
+   }
+
+   @Override
+   public void logMessage(String message) {
+      studio_.getLogManager().logMessage(message);
+   }
+
+   @Override
+   public void logError(Exception e, String message) {
+      studio_.getLogManager().logError(e, message);
+   }
+}
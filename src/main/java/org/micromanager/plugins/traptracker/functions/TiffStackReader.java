@@ -0,0 +1,189 @@
+package org.micromanager.plugins.traptracker.functions;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+// Streams the pages of an uncompressed grayscale TIFF stack (8 or 16 bit, either
+// byte order, any number of strips). Only the page being read is in memory, so
+// stacks larger than the heap can be processed. Pages are read into a direct
+// buffer that is reused for every page, and copied once into the frame, which
+// comes from the pool when one is set.
+public class TiffStackReader implements FrameSource {
+
+   private static final int IMAGE_WIDTH = 256;
+   private static final int IMAGE_LENGTH = 257;
+   private static final int BITS_PER_SAMPLE = 258;
+   private static final int COMPRESSION = 259;
+   private static final int STRIP_OFFSETS = 273;
+   private static final int SAMPLES_PER_PIXEL = 277;
+   private static final int STRIP_BYTE_COUNTS = 279;
+
+   private final FileChannel channel;
+   private final ByteOrder order;
+   private long nextIfd;
+   private long page = 0;
+   private FramePool pool;
+   private ByteBuffer pageBuffer = ByteBuffer.allocateDirect(0);
+
+   public TiffStackReader(File file) throws IOException {
+      channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+      try {
+         ByteBuffer header = read(0, 8);
+         if (header.get(0) == 'I' && header.get(1) == 'I') {
+            order = ByteOrder.LITTLE_ENDIAN;
+         } else if (header.get(0) == 'M' && header.get(1) == 'M') {
+            order = ByteOrder.BIG_ENDIAN;
+         } else {
+            throw new IOException(file + " is not a TIFF file");
+         }
+         header.order(order);
+         if (header.getShort(2) != 42) {
+            throw new IOException(file + " is a BigTIFF, which is not supported");
+         }
+         nextIfd = header.getInt(4) & 0xffffffffL;
+      } catch (IOException e) {
+         channel.close();
+         throw e;
+      }
+   }
+
+   @Override
+   public void setPool(FramePool pool) {
+      this.pool = pool;
+   }
+
+   // Next page as a frame in the format of the camera (short[] for 16 bit, in the
+   // byte order of the file), numbered from 0, or null after the last page
+   @Override
+   public Frame next() throws IOException {
+      if (nextIfd == 0) {
+         return null;
+      }
+      int entries = read(nextIfd, 2).getShort(0) & 0xffff;
+      ByteBuffer ifd = read(nextIfd + 2, 12 * entries + 4);
+      nextIfd = ifd.getInt(12 * entries) & 0xffffffffL;
+
+      int width = 0;
+      int height = 0;
+      int bits = 1;
+      int compression = 1;
+      int samples = 1;
+      long[] offsets = null;
+      long[] counts = null;
+      for (int e = 0; e < entries; e++) {
+         int entry = 12 * e;
+         switch (ifd.getShort(entry) & 0xffff) {
+            case IMAGE_WIDTH:
+               width = (int) values(ifd, entry)[0];
+               break;
+            case IMAGE_LENGTH:
+               height = (int) values(ifd, entry)[0];
+               break;
+            case BITS_PER_SAMPLE:
+               bits = (int) values(ifd, entry)[0];
+               break;
+            case COMPRESSION:
+               compression = (int) values(ifd, entry)[0];
+               break;
+            case SAMPLES_PER_PIXEL:
+               samples = (int) values(ifd, entry)[0];
+               break;
+            case STRIP_OFFSETS:
+               offsets = values(ifd, entry);
+               break;
+            case STRIP_BYTE_COUNTS:
+               counts = values(ifd, entry);
+               break;
+            default:
+               break;
+         }
+      }
+      if (compression != 1 || samples != 1 || (bits != 8 && bits != 16)) {
+         throw new IOException("Page " + page + " is not an uncompressed 8 or 16 bit"
+               + " grayscale image");
+      }
+      if (offsets == null || counts == null || offsets.length != counts.length) {
+         throw new IOException("Page " + page + " has no valid strips");
+      }
+
+      int depth = bits / 8;
+      int size = width * height * depth;
+      if (pageBuffer.capacity() < size) {
+         pageBuffer = ByteBuffer.allocateDirect(size);
+      }
+      int position = 0;
+      for (int s = 0; s < offsets.length && position < size; s++) {
+         int length = (int) Math.min(counts[s], size - position);
+         pageBuffer.limit(position + length);
+         pageBuffer.position(position);
+         long offset = offsets[s];
+         while (pageBuffer.hasRemaining()) {
+            int n = channel.read(pageBuffer, offset);
+            if (n < 0) {
+               throw new IOException("Page " + page + " is truncated");
+            }
+            offset += n;
+         }
+         position += length;
+      }
+      // Pixels past the last strip are 0, not those of the previous page
+      for (int i = position; i < size; i++) {
+         pageBuffer.put(i, (byte) 0);
+      }
+      pageBuffer.limit(size);
+      pageBuffer.position(0);
+      Frame frame = (pool == null)
+            ? FramePool.allocate(width, height, bits, page)
+            : pool.acquire(width, height, bits, page);
+      page++;
+      if (depth == 2) {
+         pageBuffer.order(order).asShortBuffer().get(frame.getShortImage(), 0, width * height);
+      } else {
+         pageBuffer.get(frame.getImage(), 0, size);
+      }
+      return frame;
+   }
+
+   // Values of a SHORT or LONG entry, stored in the entry itself if they fit
+   private long[] values(ByteBuffer ifd, int entry) throws IOException {
+      int type = ifd.getShort(entry + 2) & 0xffff;
+      int count = ifd.getInt(entry + 4);
+      int size = (type == 3) ? 2 : 4;
+      ByteBuffer data;
+      int index;
+      if (count * size <= 4) {
+         data = ifd;
+         index = entry + 8;
+      } else {
+         data = read(ifd.getInt(entry + 8) & 0xffffffffL, count * size);
+         index = 0;
+      }
+      long[] values = new long[count];
+      for (int i = 0; i < count; i++) {
+         values[i] = (size == 2)
+               ? data.getShort(index + 2 * i) & 0xffff
+               : data.getInt(index + 4 * i) & 0xffffffffL;
+      }
+      return values;
+   }
+
+   private ByteBuffer read(long position, int length) throws IOException {
+      ByteBuffer buffer = ByteBuffer.allocate(length);
+      while (buffer.hasRemaining()) {
+         if (channel.read(buffer, position + buffer.position()) < 0) {
+            throw new IOException("Unexpected end of TIFF file");
+         }
+      }
+      buffer.order(order == null ? ByteOrder.BIG_ENDIAN : order);
+      return buffer;
+   }
+
+   @Override
+   public void close() throws IOException {
+      channel.close();
+   }
+}
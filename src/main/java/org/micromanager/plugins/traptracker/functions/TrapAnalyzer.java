@@ -0,0 +1,133 @@
+package org.micromanager.plugins.traptracker.functions;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+
+// Counts the particles in every trap of a TrapMap, processing only the pixels of
+// the traps instead of the full frame. Each trap is cut out of the frame with a
+// halo of sigma + 1 pixels, so the blur inside the trap sees the same
+// neighbourhood as in the full frame, and pretreated with the fused single pass.
+// A particle belongs to the trap that contains the center of its bounding box.
+//
+// Traps with the same cut-out size share their buffers, so apart from the result
+// array, analysing a stream of frames does not allocate once every size has been
+// seen.
+public class TrapAnalyzer {
+
+   // Buffers for all cut-outs of one size
+   private static final class Worker {
+      private final int width;
+      private final int height;
+      private final byte[] mask;
+      private final FusedPretreatment fused = new FusedPretreatment();
+      private final ComponentLabeler labeler = new ComponentLabeler();
+      private Frame crop;
+
+      private Worker(int width, int height) {
+         this.width = width;
+         this.height = height;
+         mask = new byte[width * height];
+      }
+   }
+
+   private final TrapMap map;
+   private final List<Worker> workers = new ArrayList<>();
+   private final Rectangle[] rois;
+   private Rectangle[] crops = new Rectangle[0];
+   private Worker[] trapWorkers = new Worker[0];
+   private int frameWidth = -1;
+   private int frameHeight = -1;
+   private int halo = -1;
+
+   public TrapAnalyzer(TrapMap map) {
+      this.map = map;
+      rois = new Rectangle[map.size()];
+      for (int t = 0; t < rois.length; t++) {
+         rois[t] = map.get(t);
+      }
+   }
+
+   public TrapMap getMap() {
+      return map;
+   }
+
+   // Number of particles per trap, in the order of the trap map
+   public int[] analyze(Frame frame, AnalysisParameters parameters) {
+      prepare(frame.getWidth(), frame.getHeight(), Math.max(parameters.sigma, 0) + 1);
+      int[] counts = new int[map.size()];
+      for (int t = 0; t < counts.length; t++) {
+         counts[t] = countTrap(frame, t, parameters);
+      }
+      return counts;
+   }
+
+   // Cut-out of every trap, clipped to the frame, and the worker for its size
+   private void prepare(int width, int height, int halo) {
+      if (width == frameWidth && height == frameHeight && halo == this.halo) {
+         return;
+      }
+      frameWidth = width;
+      frameHeight = height;
+      this.halo = halo;
+      Rectangle bounds = new Rectangle(0, 0, width, height);
+      crops = new Rectangle[map.size()];
+      trapWorkers = new Worker[map.size()];
+      workers.clear();
+      for (int t = 0; t < map.size(); t++) {
+         Rectangle crop = new Rectangle(rois[t]);
+         crop.grow(halo, halo);
+         crops[t] = crop.intersection(bounds);
+         trapWorkers[t] = workerFor(Math.max(crops[t].width, 0), Math.max(crops[t].height, 0));
+      }
+   }
+
+   private Worker workerFor(int width, int height) {
+      for (Worker worker : workers) {
+         if (worker.width == width && worker.height == height) {
+            return worker;
+         }
+      }
+      Worker worker = new Worker(width, height);
+      workers.add(worker);
+      return worker;
+   }
+
+   private int countTrap(Frame frame, int trap, AnalysisParameters parameters) {
+      Rectangle crop = crops[trap];
+      Worker worker = trapWorkers[trap];
+      if (crop.width <= 0 || crop.height <= 0) {
+         return 0; // Trap outside the frame
+      }
+
+      // Copy the rows of the cut-out
+      if (!frame.samePixels(worker.crop)) {
+         worker.crop = frame.allocate(crop.width, crop.height);
+      }
+      for (int y = 0; y < crop.height; y++) {
+         frame.copyPixels((crop.y + y) * frameWidth + crop.x, worker.crop, y * crop.width,
+               crop.width);
+      }
+
+      worker.fused.process(worker.crop, parameters.sigma, parameters.threshold, worker.mask);
+      worker.labeler.fillHoles(worker.mask, crop.width, crop.height);
+      worker.labeler.label(worker.mask, crop.width, crop.height);
+
+      Rectangle roi = rois[trap];
+      ComponentStats stats = worker.labeler.getStats();
+      int count = 0;
+      for (int c = 0; c < stats.getCount(); c++) {
+         int area = stats.getArea(c);
+         if (area <= parameters.minSize || !ParticleCounter.isRound(area,
+               stats.getPerimeter(c), parameters.cutoffCircularity)) {
+            continue;
+         }
+         int centerX = crop.x + (stats.getMinX(c) + stats.getMaxX(c)) / 2;
+         int centerY = crop.y + (stats.getMinY(c) + stats.getMaxY(c)) / 2;
+         if (roi.contains(centerX, centerY)) {
+            count++;
+         }
+      }
+      return count;
+   }
+}
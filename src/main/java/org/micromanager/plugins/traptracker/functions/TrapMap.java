@@ -0,0 +1,108 @@
+package org.micromanager.plugins.traptracker.functions;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+// Layout of the traps on the chip, as rectangular regions of interest in frame
+// coordinates. Stored as a text file with one trap per line, "x,y,width,height",
+// lines starting with # are ignored. Traps are numbered in the order of the file.
+public class TrapMap {
+
+   private final List<Rectangle> traps;
+
+   public TrapMap(List<Rectangle> traps) {
+      List<Rectangle> copy = new ArrayList<>();
+      for (Rectangle trap : traps) {
+         copy.add(new Rectangle(trap));
+      }
+      this.traps = Collections.unmodifiableList(copy);
+   }
+
+   public int size() {
+      return traps.size();
+   }
+
+   public Rectangle get(int trap) {
+      return new Rectangle(traps.get(trap));
+   }
+
+   public static TrapMap load(File file) throws IOException {
+      List<Rectangle> traps = new ArrayList<>();
+      int lineNumber = 0;
+      for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+         lineNumber++;
+         line = line.trim();
+         if (line.isEmpty() || line.startsWith("#")) {
+            continue;
+         }
+         String[] parts = line.split(",");
+         if (parts.length != 4) {
+            throw new IOException(file + ", line " + lineNumber
+                  + ": expected x,y,width,height");
+         }
+         try {
+            traps.add(new Rectangle(Integer.parseInt(parts[0].trim()),
+                  Integer.parseInt(parts[1].trim()),
+                  Integer.parseInt(parts[2].trim()),
+                  Integer.parseInt(parts[3].trim())));
+         } catch (NumberFormatException e) {
+            throw new IOException(file + ", line " + lineNumber + ": " + e.getMessage());
+         }
+      }
+      return new TrapMap(traps);
+   }
+
+   public void save(File file) throws IOException {
+      try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file.toPath(),
+            StandardCharsets.UTF_8))) {
+         out.println("# x,y,width,height");
+         for (Rectangle trap : traps) {
+            out.println(trap.x + "," + trap.y + "," + trap.width + "," + trap.height);
+         }
+      }
+   }
+
+   // Derives the traps from a calibration frame in which every trap holds a
+   // particle: each particle found with the parameters becomes a trap, its
+   // bounding box grown by margin pixels on every side. Traps are sorted top to
+   // bottom, then left to right.
+   public static TrapMap fromCalibration(Frame frame, AnalysisParameters parameters,
+                                         int margin) {
+      int width = frame.getWidth();
+      int height = frame.getHeight();
+      ParticleCounter counter = new ParticleCounter();
+      counter.setLog(AnalysisLog.NONE);
+      counter.setBlur(parameters.blur);
+      int[] pixels = counter.imageToPixels(frame);
+      counter.invertMax(pixels, frame.getMaxValue());
+      counter.blur(pixels, width, height, parameters.sigma);
+      counter.threshold(pixels, parameters.threshold);
+      counter.fillHoles(pixels, width, height);
+      ComponentLabeler labeler = new ComponentLabeler();
+      labeler.label(pixels, width, height);
+
+      ComponentStats stats = labeler.getStats();
+      Rectangle bounds = new Rectangle(0, 0, width, height);
+      List<Rectangle> traps = new ArrayList<>();
+      for (int c = 0; c < stats.getCount(); c++) {
+         if (stats.getArea(c) <= parameters.minSize || !ParticleCounter.isRound(
+               stats.getArea(c), stats.getPerimeter(c), parameters.cutoffCircularity)) {
+            continue;
+         }
+         Rectangle trap = new Rectangle(stats.getMinX(c) - margin, stats.getMinY(c) - margin,
+               stats.getMaxX(c) - stats.getMinX(c) + 1 + 2 * margin,
+               stats.getMaxY(c) - stats.getMinY(c) + 1 + 2 * margin);
+         traps.add(trap.intersection(bounds));
+      }
+      traps.sort(Comparator.<Rectangle>comparingInt(r -> r.y).thenComparingInt(r -> r.x));
+      return new TrapMap(traps);
+   }
+}
@@ -0,0 +1,65 @@
+package org.micromanager.plugins.traptracker.functions;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+// Dark particles on the background of an empty chip, counted with and without
+// subtracting that background, at the threshold DeviceControl uses for 8 bit.
+public class BackgroundThresholdTest {
+
+   private static final int SIZE = 96;
+   private static final int PARTICLE = 20;
+   private static final int THRESHOLD = (int) (255 * 0.85);
+   private static final int[][] CENTERS = {{20, 20}, {70, 30}, {40, 72}};
+
+   @Test
+   public void countsParticlesOnMidGrayBackground() {
+      assertEquals(CENTERS.length, count(180, BackgroundModel.Mode.NONE));
+      assertEquals(CENTERS.length, count(180, BackgroundModel.Mode.REFERENCE));
+      assertEquals(CENTERS.length, count(128, BackgroundModel.Mode.REFERENCE));
+   }
+
+   @Test
+   public void matchesRawThresholdOnWhiteBackground() {
+      assertEquals(count(255, BackgroundModel.Mode.NONE),
+            count(255, BackgroundModel.Mode.REFERENCE));
+   }
+
+   @Test
+   public void keepsFaintParticlesBelowThresholdOnGrayBackground() {
+      // 60 is above the raw cutoff of 38, whatever the background
+      assertEquals(0, count(128, BackgroundModel.Mode.REFERENCE, 60));
+   }
+
+   private static int count(int background, BackgroundModel.Mode mode) {
+      return count(background, mode, PARTICLE);
+   }
+
+   private static int count(int background, BackgroundModel.Mode mode, int particle) {
+      FrameAnalyzer analyzer = new FrameAnalyzer();
+      AnalysisParameters parameters = new AnalysisParameters(3, THRESHOLD, 0);
+      parameters.background = mode;
+      analyzer.getBackground().configure(mode, 1);
+      analyzer.getBackground().learn(frame(background, background));
+      return analyzer.analyze(frame(background, particle), parameters).getCount();
+   }
+
+   private static Frame frame(int background, int particle) {
+      byte[] image = new byte[SIZE * SIZE];
+      for (int y = 0; y < SIZE; y++) {
+         for (int x = 0; x < SIZE; x++) {
+            int value = background;
+            for (int[] center : CENTERS) {
+               int dx = x - center[0];
+               int dy = y - center[1];
+               if (dx * dx + dy * dy <= 36) {
+                  value = particle;
+               }
+            }
+            image[y * SIZE + x] = (byte) value;
+         }
+      }
+      return new Frame(image, SIZE, SIZE, 1);
+   }
+}
@@ -0,0 +1,101 @@
+package org.micromanager.plugins.traptracker.functions;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import org.junit.Test;
+
+// The bit-packed mask holds exactly the pixels of the byte mask after the hole
+// filling, and the RunLabeler finds the components of the ComponentLabeler,
+// with the same statistics in the same order.
+public class BitMaskTest {
+
+   private static final int MIN_SIZE = 10;
+
+   private final ParticleCounter bytes = counter(false);
+   private final ParticleCounter bits = counter(true);
+
+   @Test
+   public void matchesByteMaskOnImages() throws Exception {
+      for (String name : TestFrames.IMAGES) {
+         Frame frame = TestFrames.image(name, 1);
+         for (int sigma : new int[] {0, 3, 5}) {
+            for (int threshold : new int[] {150, 216}) {
+               assertSame(name + " sigma " + sigma + " threshold " + threshold, frame,
+                     sigma, threshold);
+            }
+         }
+      }
+   }
+
+   @Test
+   public void matchesByteMaskOnSyntheticFrames() {
+      Random random = new Random(4);
+      for (int depth = 1; depth <= 2; depth++) {
+         Frame frame = TestFrames.particles(random, 317, 129, depth);
+         assertSame("synthetic depth " + depth, frame, 3, (int) (frame.getMaxValue() * 0.85));
+      }
+   }
+
+   @Test
+   public void matchesByteMaskOnRandomMasks() {
+      Random random = new Random(4);
+      for (int k = 0; k < 1000; k++) {
+         // Widths of up to a few 64 bit words
+         int width = 1 + random.nextInt(200);
+         int height = 1 + random.nextInt(60);
+         double fill = random.nextDouble();
+         byte[] image = new byte[width * height];
+         for (int i = 0; i < image.length; i++) {
+            image[i] = (byte) (random.nextDouble() < fill ? 0 : 255);
+         }
+         assertSame(width + " x " + height + " mask " + k, new Frame(image, width, height, 1),
+               0, 128);
+      }
+   }
+
+   private void assertSame(String message, Frame frame, int sigma, int threshold) {
+      assertEquals(message, bytes.getParticleCount(frame, sigma, threshold, MIN_SIZE),
+            bits.getParticleCount(frame, sigma, threshold, MIN_SIZE));
+      int width = frame.getWidth();
+      int height = frame.getHeight();
+      byte[] mask = bytes.getMask();
+      BitMask bitMask = bits.getBitMask();
+      for (int y = 0; y < height; y++) {
+         for (int x = 0; x < width; x++) {
+            if ((mask[y * width + x] != 0) != bitMask.get(x, y)) {
+               assertEquals(message + " pixel " + x + ", " + y, mask[y * width + x] != 0,
+                     bitMask.get(x, y));
+            }
+         }
+      }
+      ComponentLabeler labeler = new ComponentLabeler();
+      labeler.label(mask, width, height);
+      RunLabeler runLabeler = new RunLabeler();
+      runLabeler.label(bitMask);
+      assertSame(message, labeler.getStats(), runLabeler.getStats());
+   }
+
+   private static void assertSame(String message, ComponentStats expected,
+         ComponentStats actual) {
+      assertEquals(message + " components", expected.getCount(), actual.getCount());
+      for (int c = 0; c < expected.getCount(); c++) {
+         String component = message + " component " + c;
+         assertEquals(component + " area", expected.getArea(c), actual.getArea(c));
+         assertEquals(component + " perimeter", expected.getPerimeter(c),
+               actual.getPerimeter(c));
+         assertEquals(component + " min x", expected.getMinX(c), actual.getMinX(c));
+         assertEquals(component + " max x", expected.getMaxX(c), actual.getMaxX(c));
+         assertEquals(component + " min y", expected.getMinY(c), actual.getMinY(c));
+         assertEquals(component + " max y", expected.getMaxY(c), actual.getMaxY(c));
+      }
+   }
+
+   private static ParticleCounter counter(boolean bitPacked) {
+      ParticleCounter counter = new ParticleCounter();
+      counter.setLog(AnalysisLog.NONE);
+      counter.setFused(true);
+      counter.setBitPacked(bitPacked);
+      return counter;
+   }
+}
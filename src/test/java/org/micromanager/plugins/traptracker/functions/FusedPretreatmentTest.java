@@ -0,0 +1,77 @@
+package org.micromanager.plugins.traptracker.functions;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import org.junit.Test;
+
+// The fused pretreatment gives exactly the mask and the count of the separate
+// invert, blur and threshold stages.
+public class FusedPretreatmentTest {
+
+   private static final int MIN_SIZE = 10;
+
+   private final ParticleCounter separate = counter(false);
+   private final ParticleCounter fused = counter(true);
+
+   @Test
+   public void matchesSeparateStagesOnImages() throws Exception {
+      for (String name : TestFrames.IMAGES) {
+         assertSame(name, TestFrames.image(name, 1), new int[] {0, 2, 3, 5, 9});
+      }
+   }
+
+   @Test
+   public void matchesSeparateStagesOnSyntheticFrames() {
+      Random random = new Random(3);
+      for (int depth = 1; depth <= 2; depth++) {
+         assertSame("synthetic", TestFrames.particles(random, 301, 187, depth),
+               new int[] {0, 1, 3, 7});
+      }
+   }
+
+   @Test
+   public void countsNoiseLikeSeparateStages() {
+      Random random = new Random(3);
+      for (int k = 0; k < 200; k++) {
+         int width = 5 + random.nextInt(80);
+         int height = 5 + random.nextInt(80);
+         int depth = 1 + random.nextInt(2);
+         int sigma = random.nextInt(5);
+         if (2 * sigma + 1 > Math.min(width, height)) {
+            continue;
+         }
+         Frame frame = TestFrames.noise(random, width, height, depth);
+         int threshold = random.nextInt(TestFrames.max(depth) + 1);
+         assertEquals(width + " x " + height + " depth " + depth + " sigma " + sigma,
+               separate.getParticleCount(frame, sigma, threshold, 1),
+               fused.getParticleCount(frame, sigma, threshold, 1));
+      }
+   }
+
+   private void assertSame(String name, Frame frame, int[] sigmas) {
+      for (int sigma : sigmas) {
+         for (int threshold : new int[] {frame.getMaxValue() / 2,
+               (int) (frame.getMaxValue() * 0.85)}) {
+            String message = name + " depth " + frame.getDepth() + " sigma " + sigma
+                  + " threshold " + threshold;
+            assertEquals(message, separate.getParticleCount(frame, sigma, threshold, MIN_SIZE),
+                  fused.getParticleCount(frame, sigma, threshold, MIN_SIZE));
+            int[] expected = ParallelPipelineTest.mask(separate, frame, sigma, threshold);
+            byte[] mask = fused.getMask();
+            for (int i = 0; i < expected.length; i++) {
+               if ((expected[i] != 0) != (mask[i] != 0)) {
+                  assertEquals(message + " pixel " + i, expected[i] != 0, mask[i] != 0);
+               }
+            }
+         }
+      }
+   }
+
+   private static ParticleCounter counter(boolean fused) {
+      ParticleCounter counter = new ParticleCounter();
+      counter.setLog(AnalysisLog.NONE);
+      counter.setFused(fused);
+      return counter;
+   }
+}
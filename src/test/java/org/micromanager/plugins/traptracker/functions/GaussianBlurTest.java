@@ -0,0 +1,141 @@
+package org.micromanager.plugins.traptracker.functions;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Test;
+
+// The running sums and the blocked transposes of the Gaussian blur give exactly
+// the three box blurs summed pixel by pixel, serial and in strips, and the boxes
+// keep the variance of the legacy mean blur.
+public class GaussianBlurTest {
+
+   private static final int[][] SIZES = {{1, 1}, {1, 9}, {7, 3}, {130, 67}, {3, 200}};
+
+   private final ParticleCounter serial = counter(1);
+   private final ParticleCounter parallel = counter(4);
+
+   @After
+   public void shutdown() {
+      parallel.setThreads(1);
+   }
+
+   @Test
+   public void matchesBoxBlursSummedPixelByPixel() {
+      Random random = new Random(1);
+      for (int sigma = 1; sigma <= 8; sigma++) {
+         for (int[] size : SIZES) {
+            int width = size[0];
+            int height = size[1];
+            int[] pixels = new int[width * height];
+            for (int i = 0; i < pixels.length; i++) {
+               pixels[i] = random.nextInt(4096);
+            }
+            int[] expected = reference(pixels, width, height, GaussianBlur.radii(sigma));
+            String message = "sigma " + sigma + " " + width + " x " + height;
+            int[] actual = pixels.clone();
+            serial.blur(actual, width, height, sigma);
+            assertArrayEquals(message, expected, actual);
+            actual = pixels.clone();
+            parallel.blur(actual, width, height, sigma);
+            assertArrayEquals(message + " in strips", expected, actual);
+         }
+      }
+   }
+
+   @Test
+   public void keepsTheVarianceOfTheMeanBlur() {
+      for (int sigma = 1; sigma <= 20; sigma++) {
+         double variance = 0;
+         for (int radius : GaussianBlur.radii(sigma)) {
+            variance += radius * (radius + 1) / 3.0;
+         }
+         double target = sigma * (sigma + 1) / 3.0;
+         assertEquals("sigma " + sigma, target, variance, Math.max(1, 0.15 * target));
+      }
+   }
+
+   @Test
+   public void keepsConstantImagesAndSkipsSigmaZero() {
+      int[] pixels = new int[500 * 300];
+      Arrays.fill(pixels, 777);
+      int[] expected = pixels.clone();
+      serial.blur(pixels, 500, 300, 5);
+      assertArrayEquals(expected, pixels);
+      Random random = new Random(1);
+      for (int i = 0; i < pixels.length; i++) {
+         pixels[i] = random.nextInt(65536);
+      }
+      expected = pixels.clone();
+      serial.blur(pixels, 500, 300, 0);
+      assertArrayEquals(expected, pixels);
+   }
+
+   @Test
+   public void matchesSerialOnLargeFrames() {
+      Random random = new Random(1);
+      int width = 1031;
+      int height = 517;
+      int[] pixels = new int[width * height];
+      for (int i = 0; i < pixels.length; i++) {
+         pixels[i] = random.nextInt(65536);
+      }
+      for (int sigma : new int[] {3, 10}) {
+         int[] expected = pixels.clone();
+         serial.blur(expected, width, height, sigma);
+         int[] actual = pixels.clone();
+         parallel.blur(actual, width, height, sigma);
+         assertArrayEquals("sigma " + sigma, expected, actual);
+      }
+   }
+
+   // Blurs the rows, then the columns, with each box in turn, every output pixel
+   // summed over its box with the line clamped at its ends
+   private static int[] reference(int[] pixels, int width, int height, int[] radii) {
+      int[] rows = blurLines(pixels, width, height, radii);
+      int[] columns = blurLines(transpose(rows, width, height), height, width, radii);
+      return transpose(columns, height, width);
+   }
+
+   private static int[] blurLines(int[] pixels, int length, int lines, int[] radii) {
+      int[] out = pixels.clone();
+      int[] line = new int[length];
+      for (int l = 0; l < lines; l++) {
+         System.arraycopy(out, l * length, line, 0, length);
+         for (int radius : radii) {
+            int[] next = new int[length];
+            for (int x = 0; x < length; x++) {
+               int sum = 0;
+               for (int k = -radius; k <= radius; k++) {
+                  sum += line[Math.max(0, Math.min(length - 1, x + k))];
+               }
+               next[x] = (sum + radius) / (2 * radius + 1);
+            }
+            line = next;
+         }
+         System.arraycopy(line, 0, out, l * length, length);
+      }
+      return out;
+   }
+
+   private static int[] transpose(int[] pixels, int width, int height) {
+      int[] out = new int[width * height];
+      for (int y = 0; y < height; y++) {
+         for (int x = 0; x < width; x++) {
+            out[x * height + y] = pixels[y * width + x];
+         }
+      }
+      return out;
+   }
+
+   private static ParticleCounter counter(int threads) {
+      ParticleCounter counter = new ParticleCounter();
+      counter.setLog(AnalysisLog.NONE);
+      counter.setBlur(ParticleCounter.Blur.GAUSSIAN);
+      counter.setThreads(threads);
+      return counter;
+   }
+}
@@ -0,0 +1,100 @@
+package org.micromanager.plugins.traptracker.functions;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+// With a tolerance of 0 the incremental analysis counts exactly what the full
+// analysis counts, on a stream of frames where particles come and go, also at
+// the edges and corners of the frame.
+public class IncrementalAnalyzerTest {
+
+   private static final int FRAMES = 25;
+   private static final int MIN_SIZE = 5;
+
+   @Test
+   public void matchesFullAnalysisOnImages() throws Exception {
+      Random random = new Random(5);
+      for (String name : TestFrames.IMAGES) {
+         assertSame(random, name, TestFrames.image(name, 1), 3);
+      }
+   }
+
+   @Test
+   public void matchesFullAnalysisOnSyntheticFrames() {
+      Random random = new Random(5);
+      for (int depth = 1; depth <= 2; depth++) {
+         for (int sigma : new int[] {1, 3, 7}) {
+            Frame frame = TestFrames.particles(random, 300 + random.nextInt(100),
+                  200 + random.nextInt(100), depth);
+            assertSame(random, "synthetic depth " + depth, frame, sigma);
+         }
+      }
+   }
+
+   @Test
+   public void recomputesNothingForAnUnchangedFrame() throws Exception {
+      Frame frame = TestFrames.image("img_0", 1);
+      IncrementalAnalyzer incremental = new IncrementalAnalyzer();
+      AnalysisParameters parameters = new AnalysisParameters();
+      int count = incremental.analyze(frame, parameters, 0, new StageTimer());
+      assertEquals(1.0, incremental.getRecomputedFraction(), 0);
+      assertEquals(count, incremental.analyze(frame, parameters, 0, new StageTimer()));
+      assertEquals(0.0, incremental.getRecomputedFraction(), 0);
+   }
+
+   @Test
+   public void redoesTheRightEdgeWhenTheLeftEdgeChanges() {
+      // The mean blur pads both ends of a row with its first pixel, so a dark
+      // band at the right edge only passes the threshold with a dark left edge
+      int width = 4 * IncrementalAnalyzer.TILE;
+      int height = 2 * IncrementalAnalyzer.TILE;
+      byte[] image = new byte[width * height];
+      Arrays.fill(image, (byte) 204);
+      Frame frame = new Frame(image, width, height, 1);
+      AnalysisParameters parameters = new AnalysisParameters(7, 216, MIN_SIZE);
+      for (int y = 40; y < 70; y++) {
+         for (int x = width - 8; x < width; x++) {
+            frame.setPixel(y * width + x, 8);
+         }
+      }
+      IncrementalAnalyzer incremental = new IncrementalAnalyzer();
+      assertEquals(0, incremental.analyze(frame, parameters, 0, new StageTimer()));
+      for (int y = 40; y < 70; y++) {
+         for (int x = 0; x < 3; x++) {
+            frame.setPixel(y * width + x, 5);
+         }
+      }
+      assertEquals(1, incremental.analyze(frame, parameters, 0, new StageTimer()));
+   }
+
+   private static void assertSame(Random random, String name, Frame frame, int sigma) {
+      int max = frame.getMaxValue();
+      AnalysisParameters parameters = new AnalysisParameters(sigma, (int) (max * 0.85),
+            MIN_SIZE);
+      IncrementalAnalyzer incremental = new IncrementalAnalyzer();
+      ParticleCounter full = new ParticleCounter();
+      full.setLog(AnalysisLog.NONE);
+      full.setFused(true);
+      full.setBitPacked(true);
+      int width = frame.getWidth();
+      int height = frame.getHeight();
+      for (int f = 0; f < FRAMES; f++) {
+         // Up to 3 dark particles or bright patches, one in five at an edge
+         int edits = random.nextInt(4);
+         for (int j = 0; j < edits; j++) {
+            int x = random.nextInt(5) == 0 ? 0 : random.nextInt(width);
+            int y = random.nextInt(5) == 0
+                  ? (random.nextBoolean() ? 0 : height - 1) : random.nextInt(height);
+            int value = random.nextBoolean()
+                  ? (int) (max * 0.02) : (int) (max * 0.8) + random.nextInt(max / 10);
+            TestFrames.disc(frame, x, y, 3 + random.nextInt(10), value, (int) (max * 0.9));
+         }
+         assertEquals(name + " sigma " + sigma + " frame " + f,
+               full.getParticleCount(frame, sigma, parameters.threshold, MIN_SIZE),
+               incremental.analyze(frame, parameters, 0, new StageTimer()));
+      }
+   }
+}
@@ -0,0 +1,91 @@
+package org.micromanager.plugins.traptracker.functions;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import org.junit.After;
+import org.junit.Test;
+
+// The stages split in strips on the ForkJoinPool give exactly the pixels and
+// the counts of the serial stages.
+public class ParallelPipelineTest {
+
+   private static final int MIN_SIZE = 10;
+
+   private final ParticleCounter serial = counter(1);
+   private final ParticleCounter parallel = counter(4);
+
+   @After
+   public void shutdown() {
+      parallel.setThreads(1);
+   }
+
+   @Test
+   public void matchesSerialOnImages() throws Exception {
+      for (String name : TestFrames.IMAGES) {
+         assertSame(name, TestFrames.image(name, 1));
+      }
+   }
+
+   @Test
+   public void matchesSerialOnSyntheticFrames() {
+      Random random = new Random(2);
+      for (int depth = 1; depth <= 2; depth++) {
+         assertSame("synthetic", TestFrames.particles(random, 333, 201, depth));
+         // A few rows per strip, the mean blur needs at least 2 * sigma + 1
+         assertSame("flat", TestFrames.particles(random, 400, 11, depth));
+      }
+   }
+
+   @Test
+   public void fillsAndCountsRandomMasksLikeSerial() {
+      Random random = new Random(2);
+      for (int k = 0; k < 300; k++) {
+         int width = 1 + random.nextInt(200);
+         int height = 1 + random.nextInt(200);
+         int[] mask = TestFrames.mask(random, width, height, random.nextDouble());
+         int[] expected = mask.clone();
+         int[] actual = mask.clone();
+         serial.fillHoles(expected, width, height);
+         parallel.fillHoles(actual, width, height);
+         String message = width + " x " + height + " mask " + k;
+         assertArrayEquals(message, expected, actual);
+         assertEquals(message, serial.countParticles(expected, width, height, 2),
+               parallel.countParticles(actual, width, height, 2));
+      }
+   }
+
+   private void assertSame(String name, Frame frame) {
+      int threshold = (int) (frame.getMaxValue() * 0.85);
+      for (int sigma : new int[] {0, 3, 5}) {
+         for (int t : new int[] {frame.getMaxValue() / 2, threshold}) {
+            String message = name + " depth " + frame.getDepth() + " sigma " + sigma
+                  + " threshold " + t;
+            assertArrayEquals(message, mask(serial, frame, sigma, t),
+                  mask(parallel, frame, sigma, t));
+            assertEquals(message, serial.getParticleCount(frame, sigma, t, MIN_SIZE),
+                  parallel.getParticleCount(frame, sigma, t, MIN_SIZE));
+         }
+      }
+   }
+
+   // Filled mask of the separate stages
+   static int[] mask(ParticleCounter counter, Frame frame, int sigma, int threshold) {
+      int width = frame.getWidth();
+      int height = frame.getHeight();
+      int[] pixels = counter.imageToPixels(frame).clone();
+      counter.invertMax(pixels, frame.getMaxValue());
+      counter.blur(pixels, width, height, sigma);
+      counter.threshold(pixels, threshold);
+      counter.fillHoles(pixels, width, height);
+      return pixels;
+   }
+
+   private static ParticleCounter counter(int threads) {
+      ParticleCounter counter = new ParticleCounter();
+      counter.setLog(AnalysisLog.NONE);
+      counter.setThreads(threads);
+      return counter;
+   }
+}
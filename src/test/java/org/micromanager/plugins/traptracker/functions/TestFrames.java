@@ -0,0 +1,95 @@
+package org.micromanager.plugins.traptracker.functions;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import javax.imageio.ImageIO;
+
+// Frames for the equivalence tests: the example images in rsc/ scaled to the
+// depth, synthetic frames with dark round particles with a bright center on a
+// bright, noisy background like the benchmarks use, and plain noise.
+final class TestFrames {
+
+   static final String[] IMAGES = {"img_0", "img_1"};
+
+   private TestFrames() {
+   }
+
+   static Frame image(String name, int depth) throws IOException {
+      BufferedImage img;
+      try (InputStream in = TestFrames.class.getResourceAsStream("/" + name + ".jpg")) {
+         if (in == null) {
+            throw new IOException("Missing resource " + name + ".jpg");
+         }
+         img = ImageIO.read(in);
+      }
+      int width = img.getWidth();
+      int height = img.getHeight();
+      Raster raster = img.getRaster();
+      int[] pixels = new int[width * height];
+      int scale = max(depth) / 255;
+      for (int y = 0; y < height; y++) {
+         for (int x = 0; x < width; x++) {
+            pixels[y * width + x] = raster.getSample(x, y, 0) * scale;
+         }
+      }
+      return Frame.fromPixels(pixels, width, height, depth, -1);
+   }
+
+   static Frame particles(Random random, int width, int height, int depth) {
+      int max = max(depth);
+      int[] pixels = new int[width * height];
+      int background = (int) (max * 0.8);
+      int noise = max / 30;
+      for (int i = 0; i < pixels.length; i++) {
+         pixels[i] = background + random.nextInt(2 * noise + 1) - noise;
+      }
+      Frame frame = Frame.fromPixels(pixels, width, height, depth, -1);
+      // Particles on a jittered grid, about one per 40 x 40 pixels
+      int spacing = 40;
+      for (int cy = spacing / 2; cy < height; cy += spacing) {
+         for (int cx = spacing / 2; cx < width; cx += spacing) {
+            disc(frame, cx + random.nextInt(17) - 8, cy + random.nextInt(17) - 8,
+                  6 + random.nextInt(4), (int) (max * 0.03), (int) (max * 0.9));
+         }
+      }
+      return frame;
+   }
+
+   // Uniform noise in a byte buffer, big endian for depth 2
+   static Frame noise(Random random, int width, int height, int depth) {
+      byte[] image = new byte[width * height * depth];
+      random.nextBytes(image);
+      return new Frame(image, width, height, depth);
+   }
+
+   // Paints a disc of value with a center of value center into the frame,
+   // clipped at the edges
+   static void disc(Frame frame, int x0, int y0, int radius, int value, int center) {
+      int width = frame.getWidth();
+      int height = frame.getHeight();
+      for (int y = Math.max(0, y0 - radius); y <= Math.min(height - 1, y0 + radius); y++) {
+         for (int x = Math.max(0, x0 - radius); x <= Math.min(width - 1, x0 + radius); x++) {
+            int r2 = (x - x0) * (x - x0) + (y - y0) * (y - y0);
+            if (r2 <= radius * radius) {
+               frame.setPixel(y * width + x, r2 <= 4 ? center : value);
+            }
+         }
+      }
+   }
+
+   static int max(int depth) {
+      return (1 << (8 * depth)) - 1;
+   }
+
+   // Binary mask with each pixel set with probability fill, as 0 and 255
+   static int[] mask(Random random, int width, int height, double fill) {
+      int[] pixels = new int[width * height];
+      for (int i = 0; i < pixels.length; i++) {
+         pixels[i] = random.nextDouble() < fill ? 255 : 0;
+      }
+      return pixels;
+   }
+}